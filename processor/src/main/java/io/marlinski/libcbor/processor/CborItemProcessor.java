@@ -0,0 +1,323 @@
+package io.marlinski.libcbor.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a codec class for every class annotated with io.marlinski.libcbor.annotation.CborItem.
+ * The generated code calls the CborEncoder, CborWriter and CborParser API directly for every
+ * field so that no reflection is involved and no primitive field is boxed.
+ */
+public class CborItemProcessor extends AbstractProcessor {
+
+    static final String CborItem = "io.marlinski.libcbor.annotation.CborItem";
+    static final String CborNullable = "io.marlinski.libcbor.annotation.CborNullable";
+    static final String CodecSuffix = "Cbor";
+
+    private enum Kind {
+        BOOLEAN, INTEGER, FLOAT, DOUBLE, TEXT_STRING, BYTE_STRING, ITEM
+    }
+
+    private static class Field {
+        String name;
+        String type;
+        Kind kind;
+        boolean nullable;
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(CborItem);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(CborItem);
+        if (annotation == null) {
+            return false;
+        }
+        for (Element element : env.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@CborItem can only be applied to a class");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            List<Field> fields = fields(type);
+            if (fields != null) {
+                generate(type, fields);
+            }
+        }
+        return true;
+    }
+
+    private List<Field> fields(TypeElement type) {
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "@CborItem inner class must be static");
+            return null;
+        }
+
+        boolean valid = true;
+        List<Field> fields = new LinkedList<>();
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.FIELD) {
+                continue;
+            }
+            Set<Modifier> modifiers = member.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                continue;
+            }
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+                error(member, "@CborItem field must not be private nor final");
+                valid = false;
+                continue;
+            }
+
+            Field field = new Field();
+            field.name = member.getSimpleName().toString();
+            field.type = member.asType().toString();
+            field.kind = kind(member.asType());
+            field.nullable = hasAnnotation(member, CborNullable);
+            if (field.kind == null) {
+                error(member, "unsupported @CborItem field type: " + field.type);
+                valid = false;
+                continue;
+            }
+            if (field.nullable && member.asType().getKind().isPrimitive()) {
+                error(member, "@CborNullable field must be a reference type");
+                valid = false;
+                continue;
+            }
+            fields.add(field);
+        }
+        return valid ? fields : null;
+    }
+
+    private Kind kind(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return Kind.INTEGER;
+            case FLOAT:
+                return Kind.FLOAT;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case ARRAY:
+                if (((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE) {
+                    return Kind.BYTE_STRING;
+                }
+                return null;
+            case DECLARED:
+                Element element = ((DeclaredType) type).asElement();
+                if (element.toString().equals("java.lang.String")) {
+                    return Kind.TEXT_STRING;
+                }
+                if (hasAnnotation(element, CborItem)) {
+                    return Kind.ITEM;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean hasAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().toString().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the name of the codec generated for an annotated class, in the same package
+     */
+    static String codecName(String qualifiedName, String packageName) {
+        String simple = packageName.isEmpty() ? qualifiedName : qualifiedName.substring(packageName.length() + 1);
+        return simple.replace('.', '_') + CodecSuffix;
+    }
+
+    private String codecName(TypeElement type) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        return codecName(type.getQualifiedName().toString(), pkg.getQualifiedName().toString());
+    }
+
+    private String codecName(String type) {
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(type);
+        String codec = codecName(element);
+        String pkg = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+        return pkg.isEmpty() ? codec : pkg + "." + codec;
+    }
+
+    private void generate(TypeElement type, List<Field> fields) {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String codec = codecName(type);
+        String item = type.getQualifiedName().toString();
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(pkg.isEmpty() ? codec : pkg + "." + codec, type)
+                .openWriter())) {
+            if (!pkg.isEmpty()) {
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("import io.marlinski.libcbor.CBOR;");
+            out.println("import io.marlinski.libcbor.CborEncoder;");
+            out.println("import io.marlinski.libcbor.CborParser;");
+            out.println("import io.marlinski.libcbor.CborWriter;");
+            out.println();
+            out.println("/**");
+            out.println(" * CBOR codec for " + item + ", generated by the libcbor annotation processor.");
+            out.println(" */");
+            out.println("public final class " + codec + " {");
+            out.println();
+            out.println("    private " + codec + "() {");
+            out.println("    }");
+
+            generateEncode(out, "CborEncoder", "enc", item, fields);
+            generateEncode(out, "CborWriter", "writer", item, fields);
+            generateParser(out, item, fields);
+
+            out.println("}");
+        } catch (IOException io) {
+            error(type, "could not generate " + codec + ": " + io.getMessage());
+        }
+    }
+
+    private void generateEncode(PrintWriter out, String engine, String var, String item, List<Field> fields) {
+        out.println();
+        out.println("    public static " + engine + " encode(" + engine + " " + var + ", " + item + " item) {");
+        out.println("        " + var + ".cbor_start_array(" + fields.size() + ");");
+        for (Field field : fields) {
+            String value = "item." + field.name;
+            String indent = "        ";
+            if (field.nullable) {
+                out.println("        if (" + value + " == null) {");
+                out.println("            " + var + ".cbor_encode_null();");
+                out.println("        } else {");
+                indent = "            ";
+            }
+            switch (field.kind) {
+                case BOOLEAN:
+                    out.println(indent + var + ".cbor_encode_boolean(" + value + ");");
+                    break;
+                case INTEGER:
+                    out.println(indent + var + ".cbor_encode_int(" + value + ");");
+                    break;
+                case FLOAT:
+                    out.println(indent + var + ".cbor_encode_float(" + value + ");");
+                    break;
+                case DOUBLE:
+                    out.println(indent + var + ".cbor_encode_double(" + value + ");");
+                    break;
+                case TEXT_STRING:
+                    out.println(indent + var + ".cbor_encode_text_string(" + value + ");");
+                    break;
+                case BYTE_STRING:
+                    out.println(indent + var + ".cbor_encode_byte_string(" + value + ");");
+                    break;
+                case ITEM:
+                    out.println(indent + codecName(field.type) + ".encode(" + var + ", " + value + ");");
+                    break;
+            }
+            if (field.nullable) {
+                out.println("        }");
+            }
+        }
+        out.println("        return " + var + ";");
+        out.println("    }");
+    }
+
+    private void generateParser(PrintWriter out, String item, List<Field> fields) {
+        out.println();
+        out.println("    public static CborParser parser(" + item + " item) {");
+        out.println("        return CBOR.parser()");
+        out.print("                .cbor_open_array(" + fields.size() + ")");
+        for (Field field : fields) {
+            String value = "item." + field.name;
+            String parse;
+            switch (field.kind) {
+                case BOOLEAN:
+                    parse = "cbor_parse_boolean((__, v) -> " + value + " = v)";
+                    break;
+                case INTEGER:
+                    if (field.type.equals("long")) {
+                        parse = "cbor_parse_int((__, ___, v) -> " + value + " = v)";
+                    } else {
+                        parse = "cbor_parse_int((__, ___, v) -> " + value + " = (" + field.type + ") v)";
+                    }
+                    break;
+                case FLOAT:
+                    parse = "cbor_parse_float((__, ___, v) -> " + value + " = (float) v)";
+                    break;
+                case DOUBLE:
+                    parse = "cbor_parse_float((__, ___, v) -> " + value + " = v)";
+                    break;
+                case TEXT_STRING:
+                    parse = "cbor_parse_text_string_full((__, v) -> " + value + " = v)";
+                    break;
+                case BYTE_STRING:
+                    parse = "cbor_parse_byte_string_unsafe((__, ___, v) -> {\n"
+                            + "                    " + value + " = new byte[v.remaining()];\n"
+                            + "                    v.get(" + value + ");\n"
+                            + "                })";
+                    break;
+                default:
+                    // nested parser is only built when the field is reached, a nullable field is
+                    // only assigned once the item is parsed as the other contender may win
+                    if (field.nullable) {
+                        parse = "do_here(p -> {\n"
+                                + "                            " + field.type + " v = new " + field.type + "();\n"
+                                + "                            p.insert_now(" + codecName(field.type) + ".parser(v).do_here(__ -> " + value + " = v));\n"
+                                + "                        })";
+                    } else {
+                        parse = "do_here(p -> p.insert_now(" + codecName(field.type) + ".parser(" + value + " = new " + field.type + "())))";
+                    }
+                    break;
+            }
+            out.println();
+            if (field.nullable) {
+                out.print("                .cbor_or(\n"
+                        + "                        CBOR.parser().cbor_parse_null(__ -> " + value + " = null),\n"
+                        + "                        CBOR.parser()." + parse + ")");
+            } else {
+                out.print("                ." + parse);
+            }
+        }
+        out.println(";");
+        out.println("    }");
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -13,8 +13,49 @@ public class CBOR {
     public static class CborEncodingUnknown extends Exception {
     }
 
+    /**
+     * Thrown when a single item does not fit in a datagram.
+     */
+    public static class CborItemTooLarge extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final long size;
+        public final int limit;
+
+        public CborItemTooLarge(long size, int limit) {
+            super("encoded item of " + size + " bytes exceeds the datagram size of " + limit + " bytes");
+            this.size = size;
+            this.limit = limit;
+        }
+    }
+
+    private static volatile boolean encoderPooling = false;
+
+    /**
+     * Enable or disable the per-thread encoder pool. When enabled, {@link #encoder()} returns an
+     * encoder previously handed back with {@link CborEncoder#release()} on the same thread, if
+     * any. Encoders that are never released are simply garbage collected.
+     *
+     * @param enabled true to take encoders from the pool
+     */
+    public static void setEncoderPooling(boolean enabled) {
+        encoderPooling = enabled;
+    }
+
     public static CborEncoder encoder() {
-        return new CborEncoder();
+        return encoderPooling ? CborEncoder.acquire() : new CborEncoder();
+    }
+
+    public static CborWriter writer() {
+        return new CborWriter();
+    }
+
+    public static CborWriter writer(ByteBuffer target) {
+        return new CborWriter(target);
+    }
+
+    public static CborTemplate.Builder template() {
+        return CborTemplate.builder();
     }
 
     public static CborParser parser() {
@@ -29,6 +70,9 @@ public class CBOR {
         public Object item;
         public LinkedList<Long> tags;
 
+        /* set by the generic parser on indefinite-length strings, they are not in stringref tables */
+        boolean indefinite;
+
         public DataItem(int cborType) {
             this.cborType = cborType;
             tags = new LinkedList<>();
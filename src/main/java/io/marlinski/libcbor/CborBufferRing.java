@@ -0,0 +1,100 @@
+package io.marlinski.libcbor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A CborBufferRing is a fixed pool of buffers of the same size used by
+ * {@link CborEncoder#observe(CborBufferRing)}. Every emitted ByteBuffer is owned by the consumer
+ * until it hands it back with {@link #release(ByteBuffer)}, so the buffers can cross an
+ * asynchronous boundary such as observeOn or a write queue without being copied:
+ *
+ * <pre>
+ * CborBufferRing ring = new CborBufferRing(4, 2048);
+ *
+ * enc.observe(ring)
+ *         .observeOn(Schedulers.io())
+ *         .subscribe(buf -> {
+ *             channel.write(buf);
+ *             ring.release(buf);
+ *         });
+ * </pre>
+ *
+ * <p>When every buffer is held by the consumer the encoder waits for one to be released.
+ */
+public class CborBufferRing {
+
+    private final ByteBuffer[] buffers;
+    private final boolean[] lent;
+    private final ArrayDeque<ByteBuffer> free;
+
+    /**
+     * @param count number of buffers in the ring
+     * @param buffer_size size of each buffer
+     */
+    public CborBufferRing(int count, int buffer_size) {
+        if (count <= 0 || buffer_size <= 0) {
+            throw new IllegalArgumentException("ring needs at least one non-empty buffer");
+        }
+        buffers = new ByteBuffer[count];
+        lent = new boolean[count];
+        free = new ArrayDeque<>(count);
+        for (int i = 0; i < count; i++) {
+            buffers[i] = ByteBuffer.allocate(buffer_size);
+            free.add(buffers[i]);
+        }
+    }
+
+    /**
+     * @return the number of buffers not held by the consumer
+     */
+    public synchronized int available() {
+        return free.size();
+    }
+
+    /**
+     * Takes a free buffer out of the ring, waiting for the consumer to release one if needed.
+     *
+     * @return a cleared buffer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized ByteBuffer acquire() throws InterruptedException {
+        while (free.isEmpty()) {
+            wait();
+        }
+        ByteBuffer buffer = free.poll();
+        lent[indexOf(buffer)] = true;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the ring once its content was consumed. The buffer must be the one
+     * that was emitted, not a duplicate or a slice of it.
+     *
+     * @param buffer to recycle
+     * @throws IllegalArgumentException if the buffer does not belong to this ring
+     * @throws IllegalStateException if the buffer was already released
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        int i = indexOf(buffer);
+        if (i < 0) {
+            throw new IllegalArgumentException("buffer does not belong to this ring");
+        }
+        if (!lent[i]) {
+            throw new IllegalStateException("buffer already released");
+        }
+        lent[i] = false;
+        free.add(buffer);
+        notifyAll();
+    }
+
+    private int indexOf(ByteBuffer buffer) {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == buffer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
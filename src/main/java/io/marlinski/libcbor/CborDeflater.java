@@ -0,0 +1,115 @@
+package io.marlinski.libcbor;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+import io.reactivex.rxjava3.core.Emitter;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * CborDeflater compresses encoded CBOR with raw DEFLATE (no zlib header). Each encoder given to
+ * the deflater is a flush unit: once all its bytes went through the compressor a sync flush is
+ * made, so the peer can inflate and parse the item without waiting for the next one. An encoder
+ * should therefore hold one top-level item, or a batch of items that may wait for each other.
+ *
+ * <p>A CborDeflater is one compressed stream: the same Deflater, input and output buffers are
+ * used for every unit, the flows must be consumed one after the other and from a single thread.
+ * Like {@link CborEncoder#observe(int)}, the emitted ByteBuffers wrap the same output array and
+ * must be consumed before the next one is requested.
+ */
+public class CborDeflater {
+
+    private static final int bufferSize = 8192;
+
+    private final Deflater deflater;
+    private final byte[] input = new byte[bufferSize];
+    private final byte[] output = new byte[bufferSize];
+
+    public CborDeflater() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level compression level from 0 to 9, see {@link Deflater}
+     */
+    public CborDeflater(int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compress a sequence of encoders, each one followed by a sync flush.
+     *
+     * @param units encoders to compress, in order
+     * @return compressed stream
+     */
+    public Flowable<ByteBuffer> deflate(Flowable<CborEncoder> units) {
+        return units.concatMap(this::deflate, 1);
+    }
+
+    /**
+     * Compress a single encoder followed by a sync flush.
+     *
+     * @param unit encoder to compress
+     * @return compressed bytes of this unit
+     */
+    public Flowable<ByteBuffer> deflate(CborEncoder unit) {
+        return Flowable.generate(
+                () -> new Unit(unit.observe().blockingIterable().iterator()),
+                this::next,
+                Unit::dispose);
+    }
+
+    /**
+     * Release the native resources of the compressor, the deflater cannot be used anymore.
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    private static class Unit {
+        final Iterator<ByteBuffer> source;
+        ByteBuffer chunk;
+        boolean flushed;
+
+        Unit(Iterator<ByteBuffer> source) {
+            this.source = source;
+        }
+
+        void dispose() {
+            if (source instanceof Disposable) {
+                ((Disposable) source).dispose();
+            }
+        }
+    }
+
+    private Unit next(Unit unit, Emitter<ByteBuffer> emitter) {
+        while (true) {
+            if (!deflater.needsInput()) {
+                int n = deflater.deflate(output, 0, output.length, Deflater.NO_FLUSH);
+                if (n > 0) {
+                    emitter.onNext(ByteBuffer.wrap(output, 0, n));
+                    return unit;
+                }
+            } else if (unit.chunk != null && unit.chunk.hasRemaining()) {
+                // Deflater only takes arrays, read-only segments are copied in the input buffer
+                int length = Math.min(unit.chunk.remaining(), input.length);
+                unit.chunk.get(input, 0, length);
+                deflater.setInput(input, 0, length);
+            } else if (unit.source.hasNext()) {
+                unit.chunk = unit.source.next();
+            } else if (!unit.flushed) {
+                int n = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                unit.flushed = (n < output.length);
+                if (n > 0) {
+                    emitter.onNext(ByteBuffer.wrap(output, 0, n));
+                    return unit;
+                }
+            } else {
+                emitter.onComplete();
+                return unit;
+            }
+        }
+    }
+}
@@ -1,59 +1,141 @@
 package io.marlinski.libcbor;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
 
-import io.reactivex.rxjava3.core.BackpressureStrategy;
 import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Maybe;
 import io.reactivex.rxjava3.subscribers.DisposableSubscriber;
 
 public class CborEncoder {
 
     private class Subscriber extends DisposableSubscriber<ByteBuffer> {
-        private ByteBuffer upstream_current;
-        private ByteBuffer downstream_next;
+        /* number of upstream buffers requested at once */
+        private static final int batch_size = 32;
 
-        Subscriber(int buffer_size) {
-            downstream_next = ByteBuffer.allocate(buffer_size);
+        private final ArrayDeque<ByteBuffer> upstream_queue = new ArrayDeque<>();
+        private final ByteBuffer downstream_buffer;
+        private long requested;
+        private boolean done;
+        private Throwable error;
+
+        Subscriber(ByteBuffer downstream_buffer) {
+            this.downstream_buffer = downstream_buffer;
         }
 
         @Override
         protected void onStart() {
-            request(1);
+            requestBatch();
         }
 
         @Override
-        public void onNext(ByteBuffer buf) {
-            upstream_current = buf;
+        public synchronized void onNext(ByteBuffer buf) {
+            requested--;
+            if (buf.hasRemaining()) {
+                upstream_queue.add(buf);
+            }
+            notifyAll();
         }
 
         @Override
-        public void onError(Throwable t) {
+        public synchronized void onError(Throwable t) {
+            error = t;
+            done = true;
+            notifyAll();
         }
 
         @Override
-        public void onComplete() {
-            upstream_current = null;
+        public synchronized void onComplete() {
+            done = true;
+            notifyAll();
         }
 
-        public ByteBuffer fill() {
-            if (upstream_current == null) {
-                request(1);
+        private void requestBatch() {
+            synchronized (this) {
+                requested += batch_size;
             }
-            downstream_next.clear();
+            request(batch_size);
+        }
 
-            while (upstream_current != null) {
-                while (downstream_next.hasRemaining() && upstream_current.hasRemaining()) {
-                    downstream_next.put(upstream_current.get());
+        /**
+         * Returns the next upstream buffer that still has bytes, requesting a new batch when
+         * the previous one was entirely consumed. It waits if upstream is asynchronous.
+         *
+         * @return the current upstream buffer or null if upstream has completed
+         * @throws InterruptedException if interrupted while waiting for upstream
+         */
+        private ByteBuffer current() throws InterruptedException {
+            while (true) {
+                synchronized (this) {
+                    if (!upstream_queue.isEmpty()) {
+                        return upstream_queue.peek();
+                    }
+                    if (done) {
+                        return null;
+                    }
+                    if (requested > 0) {
+                        wait();
+                        continue;
+                    }
                 }
-                if (!downstream_next.hasRemaining()) {
-                    downstream_next.flip();
-                    return downstream_next;
+                requestBatch();
+            }
+        }
+
+        public ByteBuffer fill() throws Throwable {
+            return fill(downstream_buffer);
+        }
+
+        /**
+         * Fills a downstream buffer with as many upstream bytes as it can hold.
+         *
+         * @param downstream_next buffer to fill
+         * @return the flipped buffer or null if upstream has completed
+         */
+        public ByteBuffer fill(ByteBuffer downstream_next) throws Throwable {
+            downstream_next.clear();
+
+            ByteBuffer upstream_current;
+            while (downstream_next.hasRemaining() && (upstream_current = current()) != null) {
+                if (upstream_current.remaining() <= downstream_next.remaining()) {
+                    downstream_next.put(upstream_current);
+                    synchronized (this) {
+                        upstream_queue.poll();
+                    }
+                } else {
+                    ByteBuffer chunk = upstream_current.duplicate();
+                    chunk.limit(chunk.position() + downstream_next.remaining());
+                    downstream_next.put(chunk);
+                    upstream_current.position(chunk.position());
                 }
-                request(1);
+            }
+
+            if (error != null) {
+                throw error;
             }
             if (downstream_next.position() > 0) {
                 downstream_next.flip();
@@ -64,26 +146,880 @@ public class CborEncoder {
         }
     }
 
-    private Flowable<ByteBuffer> flow;
+    /* byte and text string payloads larger than this are not copied in the writer */
+    private static final int inlinePayloadThreshold = 512;
+
+    /* maximum number of buffers handed to the kernel in a single gathering write */
+    private static final int gatherSize = 64;
+
+    /* size of the file mapping added every time a mapped sink is full */
+    private static final int mappingIncrement = 64 * 1024 * 1024;
+
+    /* default maximum number of objects tracked by the value sharing mode */
+    private static final int sharedValuesTracked = 65536;
+
+    /* maximum number of released encoders kept by each thread */
+    private static final int releasedPoolSize = 8;
+
+    /* encoders whose writer grew larger than this are not kept after release */
+    private static final int releasedMaxCapacity = 1024 * 1024;
+
+    private static final ThreadLocal<ArrayDeque<CborEncoder>> released = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /* collections smaller than this are never split across the fork/join pool */
+    private static final int parallelThreshold = 1024;
+
+    /* file regions are read by chunks of this size when observed */
+    private static final int regionChunkSize = 64 * 1024;
+
+    /* each segment is either a ByteBuffer, a Flowable<ByteBuffer> or a FileRegion, segments are only appended */
+    private ArrayList<Object> segments;
+    private long flowSize;
+    private CborWriter writer;
+    private boolean deterministic;
+    private boolean preferredFloats;
+    private ForkJoinPool pool;
+    private CborFragmentCache fragments;
+    private ValueSharing sharing;
+    private boolean stringRefs;
+    private ArrayDeque<StringRefNamespace> namespaces;
+    private boolean isReleased;
+    /* true once the segments or slices of the writer memory were handed out by observe() or merge() */
+    private boolean isShared;
+    private ArrayDeque<Deferred> deferred;
+
+    /**
+     * Byte string payload that stays in a file until it is written out.
+     */
+    static class FileRegion {
+        final FileChannel channel;
+        final long position;
+        final long length;
+
+        FileRegion(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+        }
+
+        Flowable<ByteBuffer> read() {
+            return Flowable.generate(
+                    () -> new long[]{position},
+                    (offset, emitter) -> {
+                        long remaining = position + length - offset[0];
+                        if (remaining <= 0) {
+                            emitter.onComplete();
+                            return offset;
+                        }
+                        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(remaining, regionChunkSize));
+                        while (buf.hasRemaining()) {
+                            if (channel.read(buf, offset[0] + buf.position()) < 0) {
+                                throw new EOFException("file region ends past the end of the file");
+                            }
+                        }
+                        offset[0] += buf.capacity();
+                        buf.flip();
+                        emitter.onNext(buf);
+                        return offset;
+                    });
+        }
+
+        long transferTo(WritableByteChannel target) throws IOException {
+            long done = 0;
+            while (done < length) {
+                long n = channel.transferTo(position + done, length - done, target);
+                if (n <= 0) {
+                    throw new EOFException("file region ends past the end of the file");
+                }
+                done += n;
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Header reserved by an open deferred-length container.
+     */
+    private static class Deferred {
+        /* index of the segment that holds the header once the writer is flushed */
+        final int segment;
+        /* offset of the header in that segment */
+        final int offset;
+        /* position of the header in the writer while it is not flushed */
+        final int position;
+
+        Deferred(int segment, int offset, int position) {
+            this.segment = segment;
+            this.offset = offset;
+            this.position = position;
+        }
+    }
 
     public CborEncoder() {
-        flow = Flowable.empty();
+        segments = new ArrayList<>();
+        flowSize = 0;
+        writer = new CborWriter();
+        deterministic = false;
+        preferredFloats = false;
+        pool = null;
+        fragments = null;
+        sharing = null;
+        stringRefs = false;
+        namespaces = null;
+        isReleased = false;
+        isShared = false;
+        deferred = null;
     }
 
-    public CborEncoder merge(CborEncoder o) {
-        flow = flow.concatWith(o.flow);
+    /**
+     * Clears this encoder so it can be reused for a new message. The encoding modes are set back
+     * to their defaults. The segment storage and the output buffer of the writer are kept, unless
+     * the encoder was observed or merged into another one: what it handed out still belongs to
+     * its holder, so a Flowable returned by observe() keeps emitting the previous message, and
+     * new storage is allocated.
+     *
+     * @return this encoder
+     */
+    public CborEncoder reset() {
+        flowSize = 0;
+        if (isShared) {
+            segments = new ArrayList<>();
+            writer = new CborWriter();
+            isShared = false;
+        } else {
+            segments.clear();
+            writer.clear();
+        }
+        deferred = null;
+        deterministic = false;
+        preferredFloats = false;
+        pool = null;
+        fragments = null;
+        sharing = null;
+        stringRefs = false;
+        namespaces = null;
+        return this;
+    }
+
+    /**
+     * Resets this encoder and hands it back to the pool of the calling thread, from which
+     * {@link CBOR#encoder()} takes its encoders when pooling is enabled. The encoder must not be
+     * used anymore after it is released.
+     */
+    public void release() {
+        if (isReleased) {
+            return;
+        }
+        reset();
+        ArrayDeque<CborEncoder> pooled = released.get();
+        if (pooled.size() < releasedPoolSize && writer.capacity() <= releasedMaxCapacity) {
+            isReleased = true;
+            pooled.push(this);
+        }
+    }
+
+    /**
+     * @return an encoder from the pool of the calling thread, or a new one if it is empty
+     */
+    static CborEncoder acquire() {
+        CborEncoder enc = released.get().poll();
+        if (enc == null) {
+            return new CborEncoder();
+        }
+        enc.isReleased = false;
+        return enc;
+    }
+
+    /**
+     * Switch this encoder to the core deterministic encoding of RFC 8949 section 4.2.1: map
+     * keys are sorted in the bytewise lexicographic order of their encoding and floating point
+     * numbers are encoded in their shortest lossless form. Integers and lengths are always
+     * encoded in their shortest form. Items and encoders merged into this encoder are not
+     * re-encoded.
+     *
+     * @return this encoder
+     */
+    public CborEncoder deterministic() {
+        this.deterministic = true;
+        this.preferredFloats = true;
+        return this;
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Switch this encoder to the preferred serialization of floating point numbers: doubles and
+     * floats, including those given to cbor_encode_double and cbor_encode_float, are encoded in
+     * half or single precision whenever the conversion is lossless.
+     *
+     * @return this encoder
+     */
+    public CborEncoder preferredFloats() {
+        this.preferredFloats = true;
+        return this;
+    }
+
+    public boolean isPreferredFloats() {
+        return preferredFloats;
+    }
+
+    /**
+     * Encode large collections, maps and arrays in parallel. Their elements are split in chunks
+     * that are encoded by the pool into separate encoders, each chunk becomes its own segment
+     * and the segments are emitted in order after the container header. The elements must be
+     * safe to read from several threads.
+     *
+     * @param pool to encode the chunks with, or null to go back to sequential encoding
+     * @return this encoder
+     */
+    public CborEncoder parallel(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Share repeated containers with the value sharing tags: a map, collection or object array
+     * that is referenced more than once in the object given to cbor_encode_object, cbor_encode_map
+     * or cbor_encode_collection is encoded once under tag 28 and every other occurrence is
+     * encoded as tag 29 with the index of the shared value. The object graph is walked once
+     * before encoding to find the repeated references, by identity. Parallel encoding is not
+     * used in this mode.
+     *
+     * <p>Shared values are numbered over the whole top-level item, like the parser does: the
+     * encoder follows the containers opened with cbor_start_array and cbor_start_map so that
+     * objects encoded in the same top-level container can refer to each other. A merged encoder
+     * is counted as a single item.
+     *
+     * @return this encoder
+     */
+    public CborEncoder sharedValues() {
+        return sharedValues(sharedValuesTracked);
+    }
+
+    /**
+     * See {@link #sharedValues()}.
+     *
+     * @param max_tracked maximum number of distinct containers tracked per top-level item,
+     *                    containers found beyond that are never shared
+     * @return this encoder
+     */
+    public CborEncoder sharedValues(int max_tracked) {
+        this.sharing = new ValueSharing(max_tracked);
+        return this;
+    }
+
+    /**
+     * Identity tables of the value sharing mode. The reference counts are valid for one object
+     * given to cbor_encode_object, the indexes for the top-level item that holds it.
+     */
+    private static class ValueSharing {
+        final int maxTracked;
+        final IdentityHashMap<Object, Integer> counts = new IdentityHashMap<>();
+        final IdentityHashMap<Object, Integer> indexes = new IdentityHashMap<>();
+        /* items left in the containers opened outside of a shared object, -1 if not known */
+        final ArrayDeque<long[]> open = new ArrayDeque<>();
+        int depth;
+
+        ValueSharing(int maxTracked) {
+            this.maxTracked = maxTracked;
+        }
+
+        static boolean isShareable(Object o) {
+            return (o instanceof Map) || (o instanceof Collection) || (o instanceof Object[]);
+        }
+
+        /**
+         * Counts the references to every container reachable from o, a container is only
+         * walked the first time it is found.
+         */
+        void count(Object o) {
+            if (!isShareable(o)) {
+                return;
+            }
+            Integer n = counts.get(o);
+            if (n != null) {
+                counts.put(o, n + 1);
+                return;
+            }
+            if (counts.size() >= maxTracked) {
+                return;
+            }
+            counts.put(o, 1);
+            if (o instanceof Map) {
+                for (Object e : ((Map<?, ?>) o).entrySet()) {
+                    count(((Map.Entry<?, ?>) e).getKey());
+                    count(((Map.Entry<?, ?>) e).getValue());
+                }
+            } else if (o instanceof Collection) {
+                for (Object e : (Collection<?>) o) {
+                    count(e);
+                }
+            } else {
+                for (Object e : (Object[]) o) {
+                    count(e);
+                }
+            }
+        }
+
+        boolean isRepeated(Object o) {
+            Integer n = counts.get(o);
+            return n != null && n > 1;
+        }
+
+        void open(long items) {
+            open.push(new long[]{items});
+        }
+
+        /**
+         * A complete item was written outside of a shared object, every container it closes is
+         * closed in turn. The indexes are cleared once the top-level item is complete.
+         */
+        void item() {
+            while (!open.isEmpty()) {
+                long[] left = open.peek();
+                if (left[0] < 0 || --left[0] > 0) {
+                    return;
+                }
+                open.pop();
+            }
+            indexes.clear();
+        }
+
+        /**
+         * A container of unknown length was closed.
+         */
+        void close() {
+            if (!open.isEmpty() && open.peek()[0] < 0) {
+                open.pop();
+            }
+            item();
+        }
+
+        void clear() {
+            counts.clear();
+            indexes.clear();
+            open.clear();
+            depth = 0;
+        }
+    }
+
+    /**
+     * Follows the item boundaries for the value sharing mode, the items written while a shared
+     * object is encoded are part of that object.
+     */
+    private CborEncoder item() {
+        if (sharing != null && sharing.depth == 0) {
+            sharing.item();
+        }
+        return this;
+    }
+
+    private CborEncoder item(byte shifted_mt, long ui) {
+        if (sharing != null && sharing.depth == 0) {
+            if (shifted_mt == (byte) Constants.CborType.CborTagType) {
+                return this;
+            }
+            if (ui > 0 && shifted_mt == (byte) Constants.CborType.CborArrayType) {
+                sharing.open(ui);
+            } else if (ui > 0 && shifted_mt == (byte) Constants.CborType.CborMapType) {
+                sharing.open(2 * ui);
+            } else {
+                sharing.item();
+            }
+        }
+        return this;
+    }
+
+    private CborEncoder opened() {
+        if (sharing != null && sharing.depth == 0) {
+            sharing.open(-1);
+        }
+        return this;
+    }
+
+    private CborEncoder closed() {
+        if (sharing != null && sharing.depth == 0) {
+            sharing.close();
+        }
         return this;
     }
 
+    private CborEncoder encode_shared(Object o) throws CBOR.CborEncodingUnknown {
+        ValueSharing s = sharing;
+        boolean root = (s.depth == 0);
+        if (root) {
+            s.count(o);
+        }
+        boolean done = false;
+        try {
+            Integer index = s.indexes.get(o);
+            if (index != null) {
+                cbor_encode_tag(Constants.CborKnownTags.CborSharedRefTag);
+                cbor_encode_int(index);
+                done = true;
+                return this;
+            }
+            if (s.isRepeated(o)) {
+                s.indexes.put(o, s.indexes.size());
+                cbor_encode_tag(Constants.CborKnownTags.CborShareableTag);
+            }
+            s.depth++;
+            if (o instanceof Map) {
+                encode_map((Map) o);
+            } else if (o instanceof Collection) {
+                encode_collection((Collection) o);
+            } else {
+                encode_object_array(o);
+            }
+            s.depth--;
+            done = true;
+            return root ? item() : this;
+        } finally {
+            if (!done) {
+                s.clear();
+            } else if (root) {
+                s.counts.clear();
+            }
+        }
+    }
+
+    /**
+     * Encode every map, collection and array given to cbor_encode_object, cbor_encode_map or
+     * cbor_encode_collection in its own stringref namespace, see
+     * {@link #cbor_start_stringref_namespace()}. Parallel encoding is not used in this mode.
+     *
+     * @return this encoder
+     */
+    public CborEncoder stringRefs() {
+        this.stringRefs = true;
+        return this;
+    }
+
+    /**
+     * Opens a stringref namespace (tag 256) around the next item. Inside the namespace, a text
+     * or byte string that was already encoded is replaced by tag 25 with its index in the
+     * namespace table. Strings must be added with cbor_encode_text_string,
+     * cbor_encode_byte_string(byte[]), cbor_encode_byte_string(ByteBuffer), cbor_encode_object
+     * or typed arrays: definite-length strings written by other means, merged encoders, cached
+     * fragments and lazy arrays are rejected with an IllegalStateException because their strings
+     * could not be tracked. The namespace must be closed with cbor_stop_stringref_namespace once
+     * the item is encoded.
+     *
+     * @return this encoder
+     */
+    public CborEncoder cbor_start_stringref_namespace() {
+        if (namespaces == null) {
+            namespaces = new ArrayDeque<>();
+        }
+        cbor_encode_tag(Constants.CborKnownTags.CborStringRefNamespaceTag);
+        namespaces.push(new StringRefNamespace());
+        return this;
+    }
+
+    /**
+     * Closes the last namespace opened with cbor_start_stringref_namespace.
+     *
+     * @return this encoder
+     * @throws IllegalStateException if no namespace is open
+     */
+    public CborEncoder cbor_stop_stringref_namespace() {
+        if (namespace() == null) {
+            throw new IllegalStateException("no stringref namespace is open");
+        }
+        namespaces.pop();
+        return this;
+    }
+
+    private StringRefNamespace namespace() {
+        return (namespaces == null) ? null : namespaces.peek();
+    }
+
+    private void checkNoNamespace() {
+        if (namespace() != null) {
+            throw new IllegalStateException("not supported inside a stringref namespace");
+        }
+    }
+
+    /**
+     * Encodes a container in a new namespace if the stringRefs mode is on and no namespace is
+     * open yet.
+     *
+     * @return true if the container was encoded
+     */
+    private boolean encode_in_namespace(Object o) throws CBOR.CborEncodingUnknown {
+        if (!stringRefs || namespace() != null || !ValueSharing.isShareable(o)) {
+            return false;
+        }
+        cbor_start_stringref_namespace();
+        try {
+            cbor_encode_object(o);
+        } finally {
+            cbor_stop_stringref_namespace();
+        }
+        return true;
+    }
+
+    /**
+     * Splice the cached bytes of the objects registered in a fragment cache instead of encoding
+     * them again, whenever cbor_encode_object meets one of them. The cache is only used if it
+     * was set up with the same deterministic and preferred floats modes as this encoder.
+     *
+     * @param cache of encoded fragments, or null to stop using it
+     * @return this encoder
+     */
+    public CborEncoder fragments(CborFragmentCache cache) {
+        this.fragments = cache;
+        return this;
+    }
+
+    public interface ElementCallback<T> {
+        void onElement(CborEncoder encoder, T element) throws CBOR.CborEncodingUnknown;
+    }
+
+    public interface OversizedItemCallback {
+        void onOversized(CborEncoder item, long size);
+    }
+
+    private interface ElementEncoder {
+        void encode(CborEncoder enc, int i) throws CBOR.CborEncodingUnknown;
+    }
+
+    /**
+     * Encodes the elements of a chunk into a new encoder, splitting it in two as long as it is
+     * larger than the threshold.
+     */
+    private class ChunkTask extends RecursiveTask<CborEncoder> {
+        private static final long serialVersionUID = 1L;
+
+        final ElementEncoder element;
+        final int from;
+        final int to;
+
+        ChunkTask(ElementEncoder element, int from, int to) {
+            this.element = element;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CborEncoder compute() {
+            if (to - from <= parallelThreshold) {
+                CborEncoder enc = child();
+                try {
+                    for (int i = from; i < to; i++) {
+                        element.encode(enc, i);
+                    }
+                } catch (CBOR.CborEncodingUnknown ceu) {
+                    throw new IllegalStateException(ceu);
+                }
+                return enc;
+            }
+            int mid = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(element, from, mid);
+            left.fork();
+            CborEncoder right = new ChunkTask(element, mid, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    /**
+     * @return a new encoder with the same encoding modes as this one, but sequential
+     */
+    private CborEncoder child() {
+        CborEncoder enc = new CborEncoder();
+        enc.deterministic = deterministic;
+        enc.preferredFloats = preferredFloats;
+        enc.fragments = fragments;
+        return enc;
+    }
+
+    private boolean isParallel(int n) {
+        return pool != null && sharing == null && !stringRefs && namespace() == null && n > parallelThreshold;
+    }
+
+    private CborEncoder encode_parallel(int n, ElementEncoder element) throws CBOR.CborEncodingUnknown {
+        try {
+            return merge(pool.invoke(new ChunkTask(element, 0, n)));
+        } catch (RuntimeException re) {
+            for (Throwable t = re; t != null; t = t.getCause()) {
+                if (t instanceof CBOR.CborEncodingUnknown) {
+                    throw (CBOR.CborEncodingUnknown) t;
+                }
+            }
+            throw re;
+        }
+    }
+
+    /**
+     * Appends the items of another encoder. The segments of the other encoder are shared, not
+     * copied, and later changes to the other encoder are not reflected in this one.
+     *
+     * @param o encoder to merge
+     * @return this encoder
+     */
+    public CborEncoder merge(CborEncoder o) {
+        checkNoNamespace();
+        o.checkNoDeferred();
+        o.flush();
+        o.isShared = true;
+        flush();
+        flowSize = (flowSize < 0 || o.flowSize < 0) ? -1 : flowSize + o.flowSize;
+        segments.addAll(o.segments);
+        return item();
+    }
+
+    /**
+     * Appends a frozen message. Its buffers are shared, not copied.
+     *
+     * @param frozen message to merge
+     * @return this encoder
+     */
+    public CborEncoder merge(EncodedCbor frozen) {
+        checkNoNamespace();
+        flush();
+        flowSize = (flowSize < 0) ? -1 : flowSize + frozen.size();
+        segments.addAll(frozen.segments());
+        return item();
+    }
+
+    /**
+     * Encodes the message once into an immutable {@link EncodedCbor} that can be observed,
+     * written and merged any number of times without running the encoding again. Lazy parts
+     * such as Flowable byte strings and lazy arrays are consumed now, file regions are kept and
+     * read from their file every time. Large byte string payloads that were added by reference
+     * are copied, except read-only ByteBuffers whose content must not change anymore. The
+     * encoder stays usable, its writer memory is handed over to the frozen message and a new
+     * one is allocated.
+     *
+     * @return the frozen message
+     * @throws IllegalStateException if a deferred-length container is still open
+     */
+    public EncodedCbor freeze() {
+        checkNoDeferred();
+        flush();
+
+        ArrayList<Object> frozen = new ArrayList<>(segments.size());
+        CborWriter lazy = null;
+        long size = 0;
+        for (Object segment : segments) {
+            if (segment instanceof Flowable) {
+                // lazy bytes are coalesced, they are produced once and copied once
+                if (lazy == null) {
+                    lazy = new CborWriter();
+                }
+                for (ByteBuffer buf : flow(segment).blockingIterable()) {
+                    lazy.write(buf);
+                }
+                continue;
+            }
+            if (lazy != null) {
+                size += lazy.size();
+                frozen.add(lazy.flush());
+                lazy = null;
+            }
+            if (segment instanceof FileRegion) {
+                size += ((FileRegion) segment).length;
+                frozen.add(segment);
+            } else {
+                ByteBuffer buf = (ByteBuffer) segment;
+                if (!buf.isReadOnly()) {
+                    // a payload still owned by the caller, writer slices are read-only
+                    ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+                    copy.put(buf.duplicate()).flip();
+                    buf = copy;
+                }
+                size += buf.remaining();
+                frozen.add(buf.asReadOnlyBuffer());
+            }
+        }
+        if (lazy != null) {
+            size += lazy.size();
+            frozen.add(lazy.flush());
+        }
+
+        // flushed writer slices now belong to the frozen message, a reset must not reuse them
+        writer = new CborWriter();
+        return new EncodedCbor(frozen, size);
+    }
+
+    /**
+     * Returns the exact number of bytes that this encoder will produce. No byte is produced
+     * to compute it.
+     *
+     * @return the encoded size in bytes or -1 if a byte string of unknown length was added
+     * @throws IllegalStateException if a deferred-length container is still open
+     */
+    public long encodedSize() {
+        checkNoDeferred();
+        if (flowSize < 0) {
+            return -1;
+        }
+        return flowSize + writer.pending();
+    }
+
+    /**
+     * Returns the exact number of bytes that cbor_encode_object would produce for this object,
+     * without encoding it.
+     *
+     * @param o object to be sized
+     * @return the encoded size in bytes
+     * @throws CBOR.CborEncodingUnknown if object is not accepted type
+     */
+    public static long encodedSize(Object o) throws CBOR.CborEncodingUnknown {
+        return encodedSize(o, false);
+    }
+
+    /**
+     * Returns the exact number of bytes that cbor_encode_object would produce for this object,
+     * without encoding it.
+     *
+     * @param o object to be sized
+     * @param preferred_floats true if the encoder uses the preferred serialization of floats
+     * @return the encoded size in bytes
+     * @throws CBOR.CborEncodingUnknown if object is not accepted type
+     */
+    public static long encodedSize(Object o, boolean preferred_floats) throws CBOR.CborEncodingUnknown {
+        if (o instanceof Double) {
+            return preferred_floats ? CborWriter.floatSize((Double) o) : 9;
+        } else if (o instanceof Float) {
+            return preferred_floats ? CborWriter.floatSize((Float) o) : 5;
+        } else if (o instanceof Number) {
+            long value = ((Number) o).longValue();
+            return CborWriter.headerSize((value >> 63) ^ value);
+        } else if (o instanceof CharSequence) {
+            long length = CborWriter.utf8Length((CharSequence) o);
+            return CborWriter.headerSize(length) + length;
+        } else if (o instanceof Boolean) {
+            return 1;
+        } else if (o instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) o;
+            long size = CborWriter.headerSize(m.size());
+            for (Map.Entry<?, ?> entry : m.entrySet()) {
+                size += encodedSize(entry.getKey(), preferred_floats);
+                size += encodedSize(entry.getValue(), preferred_floats);
+            }
+            return size;
+        } else if (o instanceof Collection) {
+            Collection<?> c = (Collection<?>) o;
+            long size = CborWriter.headerSize(c.size());
+            for (Object item : c) {
+                size += encodedSize(item, preferred_floats);
+            }
+            return size;
+        } else if (o instanceof byte[]) {
+            int len = ((byte[]) o).length;
+            return CborWriter.headerSize(len) + len;
+        } else if (o instanceof int[]) {
+            return CborWriter.arraySize((int[]) o);
+        } else if (o instanceof long[]) {
+            return CborWriter.arraySize((long[]) o);
+        } else if (o instanceof short[]) {
+            return CborWriter.arraySize((short[]) o);
+        } else if (o instanceof double[]) {
+            double[] array = (double[]) o;
+            long size = CborWriter.headerSize(array.length);
+            if (!preferred_floats) {
+                return size + 9L * array.length;
+            }
+            for (double value : array) {
+                size += CborWriter.floatSize(value);
+            }
+            return size;
+        } else if (o instanceof float[]) {
+            float[] array = (float[]) o;
+            long size = CborWriter.headerSize(array.length);
+            if (!preferred_floats) {
+                return size + 5L * array.length;
+            }
+            for (float value : array) {
+                size += CborWriter.floatSize(value);
+            }
+            return size;
+        } else if (o instanceof boolean[]) {
+            int len = ((boolean[]) o).length;
+            return CborWriter.headerSize(len) + len;
+        } else if (o != null) {
+            Class<?> type = o.getClass();
+            if (type.isArray()) {
+                int len = Array.getLength(o);
+                long size = CborWriter.headerSize(len);
+                for (int i = 0; i < len; i++) {
+                    size += encodedSize(Array.get(o, i), preferred_floats);
+                }
+                return size;
+            } else {
+                throw new CBOR.CborEncodingUnknown();
+            }
+        } else {
+            return 1;
+        }
+    }
+
     public Flowable<ByteBuffer> observe() {
-        return flow;
+        checkNoDeferred();
+        flush();
+        isShared = true;
+        return observe_segments(segments);
+    }
+
+    /**
+     * @return the source held by a Flowable segment
+     */
+    @SuppressWarnings("unchecked")
+    private static Flowable<ByteBuffer> flow(Object segment) {
+        return (Flowable<ByteBuffer>) segment;
+    }
+
+    /**
+     * Builds the flow of a list of segments, the list must not change while it is subscribed.
+     */
+    static Flowable<ByteBuffer> observe_segments(List<Object> s) {
+        // runs of consecutive buffers are emitted by a single iterating source
+        int n = s.size();
+        ArrayList<Flowable<ByteBuffer>> parts = new ArrayList<>();
+        int from = 0;
+        for (int i = 0; i <= n; i++) {
+            if (i == n || !(s.get(i) instanceof ByteBuffer)) {
+                if (i > from) {
+                    parts.add(Flowable.range(from, i - from).map(j -> ((ByteBuffer) s.get(j)).duplicate()));
+                }
+                if (i < n && s.get(i) instanceof FileRegion) {
+                    parts.add(((FileRegion) s.get(i)).read());
+                } else if (i < n) {
+                    parts.add(flow(s.get(i)));
+                }
+                from = i + 1;
+            }
+        }
+
+        if (parts.isEmpty()) {
+            return Flowable.empty();
+        } else if (parts.size() == 1) {
+            return parts.get(0);
+        } else {
+            return Flowable.concat(parts);
+        }
+    }
+
+    /**
+     * Compress the encoded bytes, see {@link CborDeflater}. This encoder is one flush unit.
+     *
+     * @param deflater compressed stream to write into
+     * @return compressed bytes
+     */
+    public Flowable<ByteBuffer> observe(CborDeflater deflater) {
+        checkNoDeferred();
+        return deflater.deflate(this);
     }
 
     public Flowable<ByteBuffer> observe(int buffer_size) {
+        checkNoDeferred();
         return Flowable.generate(
                 () -> {
-                    Subscriber s = new Subscriber(buffer_size);
-                    flow.concatWith(Flowable.just(ByteBuffer.allocate(0))).subscribe(s);
+                    Subscriber s = new Subscriber(ByteBuffer.allocate(buffer_size));
+                    observe().subscribe(s);
                     return s;
                 },
                 (s, emitter) -> {
@@ -94,7 +1030,292 @@ public class CborEncoder {
                         emitter.onNext(next);
                     }
                     return s;
-                });
+                },
+                Subscriber::dispose);
+    }
+
+    /**
+     * Like {@link #observe(int)} but every emitted buffer is taken from the ring and is not
+     * reused until the consumer releases it with {@link CborBufferRing#release(ByteBuffer)}.
+     * The flow waits when all the buffers of the ring are held downstream.
+     *
+     * @param ring buffers to fill
+     * @return Flowable of buffers owned by the consumer
+     */
+    public Flowable<ByteBuffer> observe(CborBufferRing ring) {
+        checkNoDeferred();
+        return Flowable.generate(
+                () -> {
+                    Subscriber s = new Subscriber(null);
+                    observe().subscribe(s);
+                    return s;
+                },
+                (s, emitter) -> {
+                    ByteBuffer buffer = ring.acquire();
+                    ByteBuffer next;
+                    try {
+                        next = s.fill(buffer);
+                    } catch (Throwable t) {
+                        ring.release(buffer);
+                        throw t;
+                    }
+                    if (next == null) {
+                        ring.release(buffer);
+                        emitter.onComplete();
+                    } else {
+                        emitter.onNext(next);
+                    }
+                    return s;
+                },
+                Subscriber::dispose);
+    }
+
+    /**
+     * Packs whole top-level items into datagrams of at most datagram_size bytes, a new datagram
+     * is started whenever the next item does not fit in the current one so that every datagram
+     * can be parsed on its own. Each encoder of the flow is one item (or a group of items that
+     * must travel together). The flow fails with {@link CBOR.CborItemTooLarge} if an item is
+     * larger than a datagram.
+     *
+     * @param items encoders to pack, in order
+     * @param datagram_size maximum size of a datagram
+     * @return Flowable of datagrams, every buffer is newly allocated
+     */
+    public static Flowable<ByteBuffer> observeDatagrams(Flowable<CborEncoder> items, int datagram_size) {
+        return observeDatagrams(items, datagram_size, null);
+    }
+
+    /**
+     * Like {@link #observeDatagrams(Flowable, int)} but an item larger than a datagram is
+     * reported to the callback and skipped instead of failing the flow.
+     *
+     * @param items encoders to pack, in order
+     * @param datagram_size maximum size of a datagram
+     * @param cb called with every item that does not fit in a datagram
+     * @return Flowable of datagrams, every buffer is newly allocated
+     */
+    public static Flowable<ByteBuffer> observeDatagrams(Flowable<CborEncoder> items, int datagram_size,
+                                                        OversizedItemCallback cb) {
+        if (datagram_size <= 0) {
+            throw new IllegalArgumentException("datagram size must be positive");
+        }
+        return Flowable.defer(() -> {
+            DatagramPacker packer = new DatagramPacker(datagram_size, cb);
+            return items
+                    .concatMapIterable(packer::add)
+                    .concatWith(Maybe.fromCallable(packer::finish));
+        });
+    }
+
+    private static class DatagramPacker {
+        final int datagram_size;
+        final OversizedItemCallback cb;
+        ByteBuffer current;
+
+        DatagramPacker(int datagram_size, OversizedItemCallback cb) {
+            this.datagram_size = datagram_size;
+            this.cb = cb;
+        }
+
+        List<ByteBuffer> add(CborEncoder item) throws CBOR.CborItemTooLarge {
+            long size = item.encodedSize();
+            byte[] encoded = null;
+            if (size < 0) {
+                encoded = item.toByteArray();
+                size = encoded.length;
+            }
+            if (size > datagram_size) {
+                if (cb == null) {
+                    throw new CBOR.CborItemTooLarge(size, datagram_size);
+                }
+                cb.onOversized(item, size);
+                return Collections.emptyList();
+            }
+
+            List<ByteBuffer> full = Collections.emptyList();
+            if (current != null && current.remaining() < size) {
+                full = Collections.singletonList(finish());
+            }
+            if (current == null) {
+                current = ByteBuffer.allocate(datagram_size);
+            }
+            if (encoded != null) {
+                current.put(encoded);
+            } else {
+                for (ByteBuffer buf : item.observe().blockingIterable()) {
+                    current.put(buf);
+                }
+            }
+            return full;
+        }
+
+        ByteBuffer finish() {
+            ByteBuffer datagram = current;
+            current = null;
+            if (datagram != null) {
+                datagram.flip();
+            }
+            return datagram;
+        }
+    }
+
+    /**
+     * Drains the encoded buffers into a channel. Buffers are handed to the channel in batches
+     * with a gathering write so that large byte string payloads are never copied in user space.
+     * The channel must be in blocking mode.
+     *
+     * @param channel to write into
+     * @return the number of bytes written
+     * @throws IOException if the channel failed
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        return write_segments(channel);
+    }
+
+    /**
+     * Drains the encoded buffers into a channel. If the channel is a GatheringByteChannel such
+     * as a SocketChannel or a FileChannel, {@link #writeTo(GatheringByteChannel)} is used.
+     * The channel must be in blocking mode.
+     *
+     * @param channel to write into
+     * @return the number of bytes written
+     * @throws IOException if the channel failed
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return write_segments(channel);
+    }
+
+    /**
+     * Walks the segments, buffers are written in batches and file regions are transferred
+     * directly from their file to the channel.
+     */
+    private long write_segments(WritableByteChannel channel) throws IOException {
+        checkNoDeferred();
+        flush();
+        return write_segments(segments, channel);
+    }
+
+    static long write_segments(List<Object> s, WritableByteChannel channel) throws IOException {
+        int size = s.size();
+        ByteBuffer[] batch = new ByteBuffer[gatherSize];
+        int n = 0;
+        long written = 0;
+        for (int i = 0; i < size; i++) {
+            Object segment = s.get(i);
+            if (segment instanceof FileRegion) {
+                written += drain(channel, batch, n);
+                n = 0;
+                written += ((FileRegion) segment).transferTo(channel);
+                continue;
+            }
+
+            Iterable<ByteBuffer> buffers = (segment instanceof ByteBuffer)
+                    ? Collections.singleton(((ByteBuffer) segment).duplicate())
+                    : flow(segment).blockingIterable(gatherSize);
+            for (ByteBuffer buf : buffers) {
+                if (!buf.hasRemaining()) {
+                    continue;
+                }
+                batch[n++] = buf;
+                if (n == gatherSize) {
+                    written += drain(channel, batch, n);
+                    n = 0;
+                }
+            }
+        }
+        return written + drain(channel, batch, n);
+    }
+
+    /**
+     * A range of bytes in a file.
+     */
+    public static class ByteRange {
+        public final long position;
+        public final long length;
+
+        ByteRange(long position, long length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes the encoded buffers straight into a memory mapping of a file, starting at the given
+     * position. See {@link #writeToMapped(FileChannel, long, int)}.
+     *
+     * @param channel file opened for reading and writing
+     * @param position in the file where to write
+     * @return the range of the file that was written
+     * @throws IOException if the file could not be mapped
+     */
+    public ByteRange writeToMapped(FileChannel channel, long position) throws IOException {
+        return writeToMapped(channel, position, mappingIncrement);
+    }
+
+    /**
+     * Writes the encoded buffers straight into a memory mapping of a file, starting at the given
+     * position. If the encoded size is known the exact region is mapped at once, otherwise the
+     * mapping is grown by increment bytes at a time and the file is truncated back to the end of
+     * the written range once done, unless it was already larger. The mapped buffers are released
+     * by the garbage collector.
+     *
+     * @param channel file opened for reading and writing
+     * @param position in the file where to write
+     * @param increment size of every new mapping when the encoded size is unknown
+     * @return the range of the file that was written
+     * @throws IOException if the file could not be mapped
+     */
+    public ByteRange writeToMapped(FileChannel channel, long position, int increment) throws IOException {
+        long initial_size = channel.size();
+        long size = encodedSize();
+        long offset = position;
+        MappedByteBuffer mapping = null;
+        for (ByteBuffer buf : observe().blockingIterable(gatherSize)) {
+            while (buf.hasRemaining()) {
+                if (mapping == null || !mapping.hasRemaining()) {
+                    if (mapping != null) {
+                        offset += mapping.position();
+                    }
+                    long length = (size >= 0 && position + size > offset) ? Math.min(position + size - offset, Integer.MAX_VALUE) : increment;
+                    mapping = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+                }
+                if (buf.remaining() <= mapping.remaining()) {
+                    mapping.put(buf);
+                } else {
+                    ByteBuffer part = buf.duplicate();
+                    part.limit(part.position() + mapping.remaining());
+                    mapping.put(part);
+                    buf.position(part.position());
+                }
+            }
+        }
+        long end = (mapping == null) ? offset : offset + mapping.position();
+        if (channel.size() > Math.max(initial_size, end)) {
+            channel.truncate(Math.max(initial_size, end));
+        }
+        return new ByteRange(position, end - position);
+    }
+
+    private static long drain(WritableByteChannel channel, ByteBuffer[] batch, int n) throws IOException {
+        if (!(channel instanceof GatheringByteChannel)) {
+            long written = 0;
+            for (int i = 0; i < n; i++) {
+                while (batch[i].hasRemaining()) {
+                    written += channel.write(batch[i]);
+                }
+                batch[i] = null;
+            }
+            return written;
+        }
+        long written = 0;
+        int offset = 0;
+        while (offset < n) {
+            written += ((GatheringByteChannel) channel).write(batch, offset, n - offset);
+            while (offset < n && !batch[offset].hasRemaining()) {
+                batch[offset++] = null;
+            }
+        }
+        return written;
     }
 
     /**
@@ -108,13 +1329,15 @@ public class CborEncoder {
      * <li>Short</li>
      * <li>Byte</li>
      * <li>Boolean</li>
-     * <li>String</li>
+     * <li>CharSequence (String, StringBuilder, CharBuffer...)</li>
      * <li>Map</li>
      * <li>Collection</li>
+     * <li>byte[], encoded as a byte string</li>
+     * <li>int[], long[], short[], double[], float[], boolean[]</li>
      * <li>Object[]</li>
      * </lu>
      * <p>
-     * <p>For Map, Collection and array, the encapsulated data must also be one of the listed type.
+     * <p>For Map, Collection and Object[], the encapsulated data must also be one of the listed type.
      *
      * @param o object to be encoded
      * @return this encoder
@@ -128,29 +1351,72 @@ public class CborEncoder {
             cbor_encode_float(((Float) o));
         } else if (o instanceof Number) {
             cbor_encode_int(((Number) o).longValue());
-        } else if (o instanceof String) {
-            cbor_encode_text_string((String) o);
+        } else if (o instanceof CharSequence) {
+            cbor_encode_text_string((CharSequence) o);
         } else if (o instanceof Boolean) {
             cbor_encode_boolean((Boolean) o);
+        } else if (stringRefs && encode_in_namespace(o)) {
+            return this;
+        } else if (fragments != null && splice(o)) {
+            return this;
+        } else if (sharing != null && ValueSharing.isShareable(o)) {
+            encode_shared(o);
         } else if (o instanceof Map) {
             cbor_encode_map((Map) o);
         } else if (o instanceof Collection) {
             cbor_encode_collection((Collection) o);
+        } else if (o instanceof byte[]) {
+            cbor_encode_byte_string((byte[]) o);
+        } else if (o instanceof int[]) {
+            cbor_encode_array((int[]) o);
+        } else if (o instanceof long[]) {
+            cbor_encode_array((long[]) o);
+        } else if (o instanceof double[]) {
+            cbor_encode_array((double[]) o);
+        } else if (o instanceof float[]) {
+            cbor_encode_array((float[]) o);
+        } else if (o instanceof short[]) {
+            cbor_encode_array((short[]) o);
+        } else if (o instanceof boolean[]) {
+            cbor_encode_array((boolean[]) o);
         } else if (o != null) {
-            Class<?> type = o.getClass();
-            if (type.isArray()) {
-                int len = Array.getLength(o);
-                cbor_start_array(len);
-                for (int i = 0; i < len; i++) {
-                    cbor_encode_object(Array.get(o, i));
-                }
+            if (o.getClass().isArray()) {
+                encode_object_array(o);
             } else {
                 throw new CBOR.CborEncodingUnknown();
             }
         } else {
             cbor_encode_null();
         }
-        return this;
+        return this;
+    }
+
+    private CborEncoder encode_object_array(Object o) throws CBOR.CborEncodingUnknown {
+        int len = Array.getLength(o);
+        cbor_start_array(len);
+        if (isParallel(len) && o instanceof Object[]) {
+            Object[] array = (Object[]) o;
+            return encode_parallel(len, (enc, i) -> enc.cbor_encode_object(array[i]));
+        }
+        for (int i = 0; i < len; i++) {
+            cbor_encode_object(Array.get(o, i));
+        }
+        return this;
+    }
+
+    /**
+     * Merges the cached fragment of an object if there is one.
+     */
+    private boolean splice(Object o) {
+        if (!fragments.matches(deterministic, preferredFloats) || namespace() != null) {
+            return false;
+        }
+        EncodedCbor fragment = fragments.lookup(o);
+        if (fragment == null) {
+            return false;
+        }
+        merge(fragment);
+        return true;
     }
 
     public CborEncoder cbor_encode_boolean(boolean b) {
@@ -175,7 +1441,21 @@ public class CborEncoder {
      * @throws CBOR.CborEncodingUnknown if object is not accepted type
      */
     public CborEncoder cbor_encode_collection(Collection c) throws CBOR.CborEncodingUnknown {
+        if (stringRefs && encode_in_namespace(c)) {
+            return this;
+        }
+        if (sharing != null) {
+            return encode_shared(c);
+        }
+        return encode_collection(c);
+    }
+
+    private CborEncoder encode_collection(Collection<?> c) throws CBOR.CborEncodingUnknown {
         cbor_start_array(c.size());
+        if (isParallel(c.size())) {
+            Object[] array = c.toArray();
+            return encode_parallel(array.length, (enc, i) -> enc.cbor_encode_object(array[i]));
+        }
         for (Object o : c) {
             cbor_encode_object(o);
         }
@@ -192,7 +1472,27 @@ public class CborEncoder {
      * @throws CBOR.CborEncodingUnknown if object is not accepted type
      */
     public CborEncoder cbor_encode_map(Map m) throws CBOR.CborEncodingUnknown {
+        if (stringRefs && encode_in_namespace(m)) {
+            return this;
+        }
+        if (sharing != null) {
+            return encode_shared(m);
+        }
+        return encode_map(m);
+    }
+
+    private CborEncoder encode_map(Map<?, ?> m) throws CBOR.CborEncodingUnknown {
+        if (deterministic) {
+            return cbor_encode_map(m, new CborKeyOrder(m.keySet()));
+        }
         cbor_start_map(m.size());
+        if (isParallel(m.size())) {
+            Map.Entry<?, ?>[] entries = m.entrySet().toArray(new Map.Entry<?, ?>[0]);
+            return encode_parallel(entries.length, (enc, i) -> {
+                enc.cbor_encode_object(entries[i].getKey());
+                enc.cbor_encode_object(entries[i].getValue());
+            });
+        }
         for (Object o : m.keySet()) {
             cbor_encode_object(o);
             cbor_encode_object(m.get(o));
@@ -200,6 +1500,43 @@ public class CborEncoder {
         return this;
     }
 
+    /**
+     * cbor_encode_map will encode the map given as a parameter with its keys in the given
+     * order. The keys are not encoded again, their encoded form is taken from the key order.
+     *
+     * @param m Map to encode
+     * @param order of the keys, must hold exactly the keys of the map
+     * @return this encoder
+     * @throws CBOR.CborEncodingUnknown if a value is not of an accepted type
+     * @throws IllegalArgumentException if the map keys do not match the key order
+     */
+    public CborEncoder cbor_encode_map(Map<?, ?> m, CborKeyOrder order) throws CBOR.CborEncodingUnknown {
+        if (m.size() != order.size()) {
+            throw new IllegalArgumentException("map has " + m.size() + " keys, key order has " + order.size());
+        }
+        cbor_start_map(order.size());
+        ElementEncoder entry = (enc, i) -> {
+            Object value = m.get(order.key(i));
+            if (value == null && !m.containsKey(order.key(i))) {
+                throw new IllegalArgumentException("key missing from map: " + order.key(i));
+            }
+            if (enc.namespace() != null) {
+                // keys are tracked as any other string of the namespace
+                enc.cbor_encode_object(order.key(i));
+            } else {
+                enc.put(order.encodedKey(i)).item();
+            }
+            enc.cbor_encode_object(value);
+        };
+        if (isParallel(order.size())) {
+            return encode_parallel(order.size(), entry);
+        }
+        for (int i = 0; i < order.size(); i++) {
+            entry.encode(this, i);
+        }
+        return this;
+    }
+
 
     /**
      * Starts an indefinite array. This encoder makes no check if a break ever appear later
@@ -221,7 +1558,7 @@ public class CborEncoder {
      */
     public CborEncoder cbor_start_array(long length) {
         if (length < 0) {
-            return put((byte) Constants.CborJumpTable.CborArrayWithIndefiniteLength);
+            return put((byte) Constants.CborJumpTable.CborArrayWithIndefiniteLength).opened();
         } else {
             return encode_number((byte) Constants.CborType.CborArrayType, length);
         }
@@ -233,7 +1570,7 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_stop_array() {
-        return put((byte) Constants.CborInternals.BreakByte);
+        return put((byte) Constants.CborInternals.BreakByte).closed();
     }
 
     /**
@@ -246,7 +1583,7 @@ public class CborEncoder {
      */
     public CborEncoder cbor_start_map(long length) {
         if (length < 0) {
-            return put((byte) Constants.CborJumpTable.CborMapWithIndefiniteLength);
+            return put((byte) Constants.CborJumpTable.CborMapWithIndefiniteLength).opened();
         } else {
             return encode_number((byte) Constants.CborType.CborMapType, length);
         }
@@ -258,7 +1595,100 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_stop_map() {
-        return put((byte) Constants.CborInternals.BreakByte);
+        return put((byte) Constants.CborInternals.BreakByte).closed();
+    }
+
+    /**
+     * Starts an array whose length is not known yet. The header bytes are reserved and patched
+     * with the definite length by cbor_stop_deferred_array. Observing, writing or merging the
+     * encoder while a deferred container is open throws an IllegalStateException.
+     *
+     * @return this encoder
+     */
+    public CborEncoder cbor_start_deferred_array() {
+        return start_deferred();
+    }
+
+    /**
+     * Closes the last array opened with cbor_start_deferred_array. Reserved header bytes that
+     * are not needed for the length are removed from the output.
+     *
+     * @param length number of items that were added to the array
+     * @return this encoder
+     */
+    public CborEncoder cbor_stop_deferred_array(long length) {
+        return stop_deferred((byte) Constants.CborType.CborArrayType, length);
+    }
+
+    /**
+     * Starts a map whose length is not known yet, see cbor_start_deferred_array.
+     *
+     * @return this encoder
+     */
+    public CborEncoder cbor_start_deferred_map() {
+        return start_deferred();
+    }
+
+    /**
+     * Closes the last map opened with cbor_start_deferred_map.
+     *
+     * @param length number of key/value pairs that were added to the map
+     * @return this encoder
+     */
+    public CborEncoder cbor_stop_deferred_map(long length) {
+        return stop_deferred((byte) Constants.CborType.CborMapType, length);
+    }
+
+    /**
+     * The reserved header of an open deferred container must not be output.
+     */
+    private void checkNoDeferred() {
+        if (deferred != null && !deferred.isEmpty()) {
+            throw new IllegalStateException("a deferred container is still open");
+        }
+    }
+
+    private CborEncoder start_deferred() {
+        if (deferred == null) {
+            deferred = new ArrayDeque<>();
+        }
+        int position = writer.reserve_header();
+        deferred.push(new Deferred(segments.size(), writer.pending() - CborWriter.deferredHeaderSize, position));
+        return opened();
+    }
+
+    private CborEncoder stop_deferred(byte shifted_mt, long length) {
+        if (deferred == null || deferred.isEmpty()) {
+            throw new IllegalStateException("no deferred container is open");
+        }
+        Deferred d = deferred.pop();
+        closed();
+        if (segments.size() == d.segment) {
+            // the header is still in the writer, patch and compact in place
+            writer.patch_header(d.position, shifted_mt, length);
+            return this;
+        }
+
+        // the header was flushed, split its segment around the reserved bytes
+        ByteBuffer segment = (ByteBuffer) segments.get(d.segment);
+        CborWriter header = new CborWriter(CborWriter.deferredHeaderSize);
+        header.write_number(shifted_mt, length);
+        ByteBuffer before = segment.duplicate();
+        before.limit(d.offset);
+        ByteBuffer after = segment.duplicate();
+        after.position(d.offset + CborWriter.deferredHeaderSize);
+
+        segments.set(d.segment, header.toByteBuffer());
+        if (after.hasRemaining()) {
+            segments.add(d.segment + 1, after.slice());
+        }
+        if (before.hasRemaining()) {
+            segments.add(d.segment, before.slice());
+        }
+        if (flowSize >= 0) {
+            flowSize -= CborWriter.deferredHeaderSize - header.size();
+        }
+        return this;
     }
 
     /**
@@ -272,20 +1702,22 @@ public class CborEncoder {
      */
     public CborEncoder cbor_start_byte_string(long length) {
         if (length < 0) {
-            return put((byte) Constants.CborJumpTable.CborByteStringWithIndefiniteLength);
+            return put((byte) Constants.CborJumpTable.CborByteStringWithIndefiniteLength).opened();
         } else {
+            checkNoNamespace();
             return encode_number((byte) Constants.CborType.CborByteStringType, length);
         }
     }
 
     /**
-     * Add a fixed length byte string.
+     * Add a fixed length byte string. A chunk is never replaced by a stringref nor added to the
+     * table of a stringref namespace.
      *
      * @param chunk to add
      * @return this encoder
      */
     public CborEncoder cbor_put_byte_string_chunk(byte[] chunk) {
-        return cbor_encode_byte_string(chunk);
+        return write_string((byte) Constants.CborType.CborByteStringType, chunk);
     }
 
     /**
@@ -295,7 +1727,7 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_stop_byte_string() {
-        return put((byte) Constants.CborInternals.BreakByte);
+        return put((byte) Constants.CborInternals.BreakByte).closed();
     }
 
     /**
@@ -309,20 +1741,23 @@ public class CborEncoder {
      */
     public CborEncoder cbor_start_text_string(long length) {
         if (length < 0) {
-            return put((byte) Constants.CborJumpTable.CborTextStringWithIndefiniteLength);
+            return put((byte) Constants.CborJumpTable.CborTextStringWithIndefiniteLength).opened();
         } else {
+            checkNoNamespace();
             return encode_number((byte) Constants.CborType.CborTextStringType, length);
         }
     }
 
     /**
-     * Add a fixed length text string.
+     * Add a fixed length text string. A chunk is never replaced by a stringref nor added to the
+     * table of a stringref namespace.
      *
      * @param chunk to add
      * @return this encoder
      */
-    public CborEncoder cbor_put_text_string_chunk(String chunk) {
-        return cbor_encode_text_string(chunk);
+    public CborEncoder cbor_put_text_string_chunk(CharSequence chunk) {
+        writer.cbor_encode_text_string(chunk);
+        return item();
     }
 
     /**
@@ -332,7 +1767,7 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_stop_text_string() {
-        return put((byte) Constants.CborInternals.BreakByte);
+        return put((byte) Constants.CborInternals.BreakByte).closed();
     }
 
     /**
@@ -355,6 +1790,31 @@ public class CborEncoder {
         return encode_string((byte) Constants.CborType.CborByteStringType, buf);
     }
 
+    /**
+     * Add a byte string whose payload is a region of a file. Only the header is written in the
+     * encoder, the payload stays in the file: writeTo transfers it straight from the file to
+     * the channel (sendfile where the platform supports it) and observe reads it by chunks.
+     * The file must not be modified nor closed until the encoder has been written.
+     *
+     * @param file to read the payload from
+     * @param position of the payload in the file
+     * @param length of the payload
+     * @return this encoder
+     * @throws IllegalArgumentException if the position or the length is negative
+     */
+    public CborEncoder cbor_encode_byte_string(FileChannel file, long position, long length) {
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("negative file region: " + position + ", " + length);
+        }
+        cbor_start_byte_string(length);
+        if (length > 0) {
+            flush();
+            flowSize = (flowSize < 0) ? -1 : flowSize + length;
+            segments.add(new FileRegion(file, position, length));
+        }
+        return this;
+    }
+
     /**
      * Add a byte string from a Flowable whose size if undefined
      *
@@ -363,8 +1823,8 @@ public class CborEncoder {
      */
     public CborEncoder cbor_encode_byte_string(Flowable<ByteBuffer> source) {
         cbor_start_byte_string(-1);
-        add(source.map(ByteBuffer::duplicate));
-        return this;
+        add(source.map(ByteBuffer::duplicate), -1);
+        return closed();
     }
 
     /**
@@ -376,19 +1836,257 @@ public class CborEncoder {
      */
     public CborEncoder cbor_encode_byte_string(long length, Flowable<ByteBuffer> source) {
         cbor_start_byte_string(length);
-        add(source.map(ByteBuffer::duplicate));
+        add(source.map(ByteBuffer::duplicate), length);
         return this;
     }
 
     /**
-     * Add a fixed length text string. This encoder makes no check that the str supplied is
-     * a UTF-8 text string.
+     * Add a fixed length text string. The character sequence is encoded as UTF-8 directly into
+     * the output buffer, unpaired surrogates are replaced with '?'.
      *
      * @param str to add
      * @return this encoder
      */
-    public CborEncoder cbor_encode_text_string(String str) {
-        return encode_string((byte) Constants.CborType.CborTextStringType, str.getBytes());
+    public CborEncoder cbor_encode_text_string(CharSequence str) {
+        StringRefNamespace ns = namespace();
+        if (ns != null) {
+            String key = str.toString();
+            Integer index = ns.index(key);
+            if (index != null) {
+                return encode_stringref(index);
+            }
+            ns.add(key, CborWriter.utf8Length(key));
+        }
+        writer.cbor_encode_text_string(str);
+        return item();
+    }
+
+    /**
+     * encode an array of integers without boxing its elements.
+     *
+     * @param array to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_array(int[] array) {
+        writer.cbor_encode_array(array);
+        return item();
+    }
+
+    /**
+     * encode an array of long integers without boxing its elements.
+     *
+     * @param array to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_array(long[] array) {
+        writer.cbor_encode_array(array);
+        return item();
+    }
+
+    /**
+     * encode an array of short integers without boxing its elements.
+     *
+     * @param array to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_array(short[] array) {
+        writer.cbor_encode_array(array);
+        return item();
+    }
+
+    /**
+     * encode an array of double floating point numbers without boxing its elements.
+     *
+     * @param array to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_array(double[] array) {
+        if (preferredFloats) {
+            cbor_start_array(array.length);
+            for (double value : array) {
+                cbor_encode_shortest_float(value);
+            }
+            return this;
+        }
+        writer.cbor_encode_array(array);
+        return item();
+    }
+
+    /**
+     * encode an array of single floating point numbers without boxing its elements.
+     *
+     * @param array to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_array(float[] array) {
+        if (preferredFloats) {
+            cbor_start_array(array.length);
+            for (float value : array) {
+                cbor_encode_shortest_float(value);
+            }
+            return this;
+        }
+        writer.cbor_encode_array(array);
+        return item();
+    }
+
+    /**
+     * encode an array of booleans without boxing its elements.
+     *
+     * @param array to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_array(boolean[] array) {
+        writer.cbor_encode_array(array);
+        return item();
+    }
+
+    /**
+     * encode an indefinite array whose elements are pulled from a source only when downstream
+     * requests more bytes. Each element is encoded by the callback into its own encoder.
+     *
+     * @param source of elements
+     * @param cb called to encode every element
+     * @param <T> type of the elements
+     * @return this encoder
+     */
+    public <T> CborEncoder cbor_encode_array(Flowable<T> source, ElementCallback<T> cb) {
+        cbor_start_indefinite_array();
+        add(lazy_elements(source, cb), -1);
+        return cbor_stop_array();
+    }
+
+    /**
+     * encode a definite array whose elements are pulled from a source only when downstream
+     * requests more bytes. The flow fails with an IllegalStateException if the source does not
+     * emit exactly length elements.
+     *
+     * @param length number of elements the source emits
+     * @param source of elements
+     * @param cb called to encode every element
+     * @param <T> type of the elements
+     * @return this encoder
+     * @throws IllegalArgumentException if the length is negative
+     */
+    public <T> CborEncoder cbor_encode_array(long length, Flowable<T> source, ElementCallback<T> cb) {
+        if (length < 0) {
+            throw new IllegalArgumentException("negative array length: " + length);
+        }
+        writer.write_number((byte) Constants.CborType.CborArrayType, length);
+        item();
+        Flowable<T> counted = Flowable.defer(() -> {
+            long[] count = {0};
+            return source
+                    .doOnNext(__ -> count[0]++)
+                    .concatWith(Flowable.defer(() -> (count[0] == length)
+                            ? Flowable.<T>empty()
+                            : Flowable.<T>error(new IllegalStateException("expected " + length + " elements, got " + count[0]))));
+        });
+        add(lazy_elements(counted, cb), -1);
+        return this;
+    }
+
+    /**
+     * encode an indefinite array whose elements are pulled from an iterator only when
+     * downstream requests more bytes. An iterator can only be consumed once so the encoder
+     * can only be observed once.
+     *
+     * @param it iterator over the elements
+     * @param cb called to encode every element
+     * @param <T> type of the elements
+     * @return this encoder
+     */
+    public <T> CborEncoder cbor_encode_array(Iterator<T> it, ElementCallback<T> cb) {
+        return cbor_encode_array(Flowable.fromIterable(() -> it), cb);
+    }
+
+    /**
+     * encode an indefinite array whose elements are pulled from a stream only when downstream
+     * requests more bytes. The stream is closed once consumed, so the encoder can only be
+     * observed once.
+     *
+     * @param stream of elements
+     * @param cb called to encode every element
+     * @param <T> type of the elements
+     * @return this encoder
+     */
+    public <T> CborEncoder cbor_encode_array(Stream<T> stream, ElementCallback<T> cb) {
+        return cbor_encode_array(Flowable.fromStream(stream), cb);
+    }
+
+    private <T> Flowable<ByteBuffer> lazy_elements(Flowable<T> source, ElementCallback<T> cb) {
+        checkNoNamespace();
+        return source.concatMap(element -> {
+            CborEncoder enc = child();
+            cb.onElement(enc, element);
+            return enc.observe();
+        }, 1);
+    }
+
+    /**
+     * encode an array of long integers as a RFC 8746 typed array, a tagged byte string of
+     * packed values.
+     *
+     * @param array to add
+     * @param order byte order of the packed values
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_typed_array(long[] array, ByteOrder order) {
+        return cbor_encode_typed_array(LongBuffer.wrap(array), order);
+    }
+
+    public CborEncoder cbor_encode_typed_array(int[] array, ByteOrder order) {
+        return cbor_encode_typed_array(IntBuffer.wrap(array), order);
+    }
+
+    public CborEncoder cbor_encode_typed_array(short[] array, ByteOrder order) {
+        return cbor_encode_typed_array(ShortBuffer.wrap(array), order);
+    }
+
+    public CborEncoder cbor_encode_typed_array(double[] array, ByteOrder order) {
+        return cbor_encode_typed_array(DoubleBuffer.wrap(array), order);
+    }
+
+    public CborEncoder cbor_encode_typed_array(float[] array, ByteOrder order) {
+        return cbor_encode_typed_array(FloatBuffer.wrap(array), order);
+    }
+
+    /**
+     * encode the remaining values of a buffer as a RFC 8746 typed array. The values are
+     * copied in bulk, the buffer position is not modified.
+     *
+     * @param buf values to add
+     * @param order byte order of the packed values
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_typed_array(LongBuffer buf, ByteOrder order) {
+        ByteBuffer packed = ByteBuffer.allocate(buf.remaining() * 8).order(order);
+        packed.asLongBuffer().put(buf.duplicate());
+        return encode_typed_array(typedArrayTag(false, true, order, 3), packed);
+    }
+
+    public CborEncoder cbor_encode_typed_array(IntBuffer buf, ByteOrder order) {
+        ByteBuffer packed = ByteBuffer.allocate(buf.remaining() * 4).order(order);
+        packed.asIntBuffer().put(buf.duplicate());
+        return encode_typed_array(typedArrayTag(false, true, order, 2), packed);
+    }
+
+    public CborEncoder cbor_encode_typed_array(ShortBuffer buf, ByteOrder order) {
+        ByteBuffer packed = ByteBuffer.allocate(buf.remaining() * 2).order(order);
+        packed.asShortBuffer().put(buf.duplicate());
+        return encode_typed_array(typedArrayTag(false, true, order, 1), packed);
+    }
+
+    public CborEncoder cbor_encode_typed_array(DoubleBuffer buf, ByteOrder order) {
+        ByteBuffer packed = ByteBuffer.allocate(buf.remaining() * 8).order(order);
+        packed.asDoubleBuffer().put(buf.duplicate());
+        return encode_typed_array(typedArrayTag(true, false, order, 2), packed);
+    }
+
+    public CborEncoder cbor_encode_typed_array(FloatBuffer buf, ByteOrder order) {
+        ByteBuffer packed = ByteBuffer.allocate(buf.remaining() * 4).order(order);
+        packed.asFloatBuffer().put(buf.duplicate());
+        return encode_typed_array(typedArrayTag(true, false, order, 1), packed);
     }
 
     /**
@@ -408,15 +2106,12 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_encode_double(double value) {
-        add(Flowable.create(s -> {
-            ByteBuffer out = ByteBuffer.allocate(9);
-            out.put((byte) Constants.CborJumpTable.CborDoublePrecisionFloat);
-            out.putDouble(value);
-            out.flip();
-            s.onNext(out);
-            s.onComplete();
-        }, BackpressureStrategy.BUFFER));
-        return this;
+        if (preferredFloats) {
+            writer.cbor_encode_shortest_float(value);
+        } else {
+            writer.cbor_encode_double(value);
+        }
+        return item();
     }
 
     /**
@@ -426,15 +2121,12 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_encode_float(float value) {
-        add(Flowable.create(s -> {
-            ByteBuffer out = ByteBuffer.allocate(5);
-            out.put((byte) Constants.CborJumpTable.CborSinglePrecisionFloat);
-            out.putFloat(value);
-            out.flip();
-            s.onNext(out);
-            s.onComplete();
-        }, BackpressureStrategy.BUFFER));
-        return this;
+        if (preferredFloats) {
+            writer.cbor_encode_shortest_float(value);
+        } else {
+            writer.cbor_encode_float(value);
+        }
+        return item();
     }
 
     /**
@@ -444,15 +2136,20 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_encode_half_float(float value) {
-        add(Flowable.create(s -> {
-            ByteBuffer out = ByteBuffer.allocate(3);
-            out.put((byte) Constants.CborJumpTable.CborHalfPrecisionFloat);
-            out.putShort(halfPrecisionToRawIntBits(value));
-            out.flip();
-            s.onNext(out);
-            s.onComplete();
-        }, BackpressureStrategy.BUFFER));
-        return this;
+        writer.cbor_encode_half_float(value);
+        return item();
+    }
+
+    /**
+     * encode a floating point number with the shortest precision that preserves its value,
+     * whatever the mode of this encoder.
+     *
+     * @param value to add
+     * @return this encoder
+     */
+    public CborEncoder cbor_encode_shortest_float(double value) {
+        writer.cbor_encode_shortest_float(value);
+        return item();
     }
 
     /**
@@ -462,11 +2159,8 @@ public class CborEncoder {
      * @return this encoder
      */
     public CborEncoder cbor_encode_simple_value(byte value) {
-        if ((value & 0xff) <= Constants.CborSimpleValues.Break) {
-            return encode_number((byte) (Constants.CborMajorTypes.SimpleTypesType << Constants.CborInternals.MajorTypeShift), value);
-        } else {
-            return put((byte) Constants.CborJumpTable.CborSimpleValue1ByteFollow, value);
-        }
+        writer.cbor_encode_simple_value(value);
+        return item();
     }
 
     /**
@@ -505,119 +2199,152 @@ public class CborEncoder {
 
     private CborEncoder encode_string(byte shifted_mt, byte[] array) {
         int len = (array == null) ? 0 : array.length;
-        if (array == null) {
-            return encode_number(shifted_mt, len);
+        StringRefNamespace ns = namespace();
+        if (ns != null && len > 0) {
+            Integer index = ns.index(ByteBuffer.wrap(array));
+            if (index != null) {
+                return encode_stringref(index);
+            }
+            ns.add(ByteBuffer.wrap(array.clone()), len);
+        }
+        return write_string(shifted_mt, array);
+    }
+
+    private CborEncoder write_string(byte shifted_mt, byte[] array) {
+        int len = (array == null) ? 0 : array.length;
+        encode_number(shifted_mt, len);
+        if (len <= inlinePayloadThreshold) {
+            if (len > 0) {
+                writer.write(array, 0, len);
+            }
         } else {
-            encode_number(shifted_mt, len);
-            add(Flowable.create(s -> {
-                s.onNext(ByteBuffer.wrap(array));
-                s.onComplete();
-            }, BackpressureStrategy.BUFFER));
-            return this;
+            add(ByteBuffer.wrap(array), len);
         }
+        return this;
     }
 
     private CborEncoder encode_string(byte shifted_mt, ByteBuffer buf) {
         int len = (buf == null) ? 0 : buf.remaining();
-        if (buf == null) {
-            return encode_number(shifted_mt, len);
+        StringRefNamespace ns = namespace();
+        if (ns != null && len > 0) {
+            Integer index = ns.index(buf);
+            if (index != null) {
+                return encode_stringref(index);
+            }
+            ByteBuffer copy = ByteBuffer.allocate(len);
+            copy.put(buf.duplicate()).flip();
+            ns.add(copy, len);
+        }
+        encode_number(shifted_mt, len);
+        if (len <= inlinePayloadThreshold) {
+            if (len > 0) {
+                writer.write(buf.duplicate());
+            }
         } else {
-            encode_number(shifted_mt, len);
-            add(Flowable.create(s -> {
-                ByteBuffer dup = buf.duplicate();
-                s.onNext(dup);
-                s.onComplete();
-            }, BackpressureStrategy.BUFFER));
-            return this;
+            add(buf.duplicate(), len);
+        }
+        return this;
+    }
+
+    private CborEncoder encode_stringref(int index) {
+        cbor_encode_tag(Constants.CborKnownTags.CborStringRefTag);
+        return cbor_encode_int(index);
+    }
+
+    private CborEncoder encode_typed_array(int tag, ByteBuffer packed) {
+        cbor_encode_tag(tag);
+        return encode_string((byte) Constants.CborType.CborByteStringType, packed);
+    }
+
+    private static int typedArrayTag(boolean is_float, boolean signed, ByteOrder order, int ll) {
+        int tag = Constants.CborTypedArrayTags.FirstTag | ll;
+        if (is_float) {
+            tag |= Constants.CborTypedArrayTags.FloatBit;
+        }
+        if (signed) {
+            tag |= Constants.CborTypedArrayTags.SignedBit;
         }
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            tag |= Constants.CborTypedArrayTags.LittleEndianBit;
+        }
+        return tag;
     }
 
     private CborEncoder put(byte b) {
-        add(Flowable.create(s -> {
-            ByteBuffer out = ByteBuffer.allocate(1);
-            out.put(b);
-            out.flip();
-            s.onNext(out);
-            s.onComplete();
-        }, BackpressureStrategy.BUFFER));
+        writer.write(b);
         return this;
     }
 
-    private CborEncoder put(byte b1, byte b2) {
-        add(Flowable.create(s -> {
-            ByteBuffer out = ByteBuffer.allocate(2);
-            out.put(b1);
-            out.put(b2);
-            out.flip();
-            s.onNext(out);
-            s.onComplete();
-        }, BackpressureStrategy.BUFFER));
-        return this;
+    /**
+     * Collect the encoded bytes of this encoder into an array.
+     *
+     * @return encoded bytes
+     */
+    byte[] toByteArray() {
+        checkNoDeferred();
+        if (flowSize == 0) {
+            return writer.toByteArray();
+        }
+        CborWriter out = new CborWriter((int) Math.max(encodedSize(), 0));
+        flush();
+        // copied right away, the writer memory does not leave the encoder
+        for (ByteBuffer buf : observe_segments(segments).blockingIterable()) {
+            out.write(buf);
+        }
+        return out.toByteArray();
     }
 
-    private CborEncoder encode_number(final byte shifted_mt, final long ui) {
-        add(Flowable.create(s -> {
-            ByteBuffer out;
-            if (ui < Constants.CborAdditionalInfo.Value8Bit) {
-                out = ByteBuffer.allocate(1);
-                out.put((byte) (shifted_mt | ui & 0xff));
-            } else if (ui < 0x100L) {
-                out = ByteBuffer.allocate(2);
-                out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value8Bit));
-                out.put((byte) ui);
-            } else if (ui < 0x10000L) {
-                out = ByteBuffer.allocate(3);
-                out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value16Bit));
-                out.putShort((short) ui);
-            } else if (ui < 0x100000000L) {
-                out = ByteBuffer.allocate(5);
-                out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value32Bit));
-                out.putInt((int) ui);
-            } else {
-                out = ByteBuffer.allocate(9);
-                out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value64Bit));
-                out.putLong(ui);
-            }
-            out.flip();
-            s.onNext(out);
-            s.onComplete();
-        }, BackpressureStrategy.BUFFER));
+    /**
+     * Append bytes that are already CBOR encoded.
+     *
+     * @param encoded bytes
+     * @return this encoder
+     */
+    CborEncoder put(byte[] encoded) {
+        writer.write(encoded, 0, encoded.length);
         return this;
     }
 
-    private short halfPrecisionToRawIntBits(float value) {
-        int fbits = Float.floatToIntBits(value);
-        int sign = (fbits >>> 16) & 0x8000;
-        int val = (fbits & 0x7fffffff) + 0x1000;
+    private CborEncoder encode_number(final byte shifted_mt, final long ui) {
+        writer.write_number(shifted_mt, ui);
+        return item(shifted_mt, ui);
+    }
 
-        // might be or become NaN/Inf
-        if (val >= 0x47800000) {
-            if ((fbits & 0x7fffffff) >= 0x47800000) { // is or must become NaN/Inf
-                if (val < 0x7f800000) {
-                    // was value but too large, make it +/-Inf
-                    return (short) (sign | 0x7c00);
-                }
-                return (short) ((sign | 0x7c00 | (fbits & 0x007fffff) >>> 13)); // keep NaN (and Inf) bits
+    /**
+     * Turns the bytes written so far in the writer into a segment.
+     */
+    private void flush() {
+        if (writer.pending() > 0) {
+            if (flowSize >= 0) {
+                flowSize += writer.pending();
             }
-            return (short) (sign | 0x7bff); // unrounded not quite Inf
-        }
-        if (val >= 0x38800000) {
-            // remains normalized value
-            return (short) (sign | val - 0x38000000 >>> 13); // exp - 127 + 15
-        }
-        if (val < 0x33000000) {
-            // too small for subnormal
-            return (short) (sign); // becomes +/-0
+            ByteBuffer segment = writer.flush();
+            segments.add(segment);
         }
-
-        val = (fbits & 0x7fffffff) >>> 23;
-        // add subnormal bit, round depending on cut off and div by 2^(1-(exp-127+15)) and >> 13 | exp=0
-        return (short) (sign | ((fbits & 0x7fffff | 0x800000) + (0x800000 >>> val - 102) >>> 126 - val));
     }
 
+    /**
+     * Appends a buffer to the segments, the buffer is duplicated when emitted.
+     *
+     * @param buf to append
+     * @param length number of bytes in the buffer
+     */
+    private void add(ByteBuffer buf, long length) {
+        flush();
+        flowSize = (flowSize < 0) ? -1 : flowSize + length;
+        segments.add(buf);
+    }
 
-    private void add(Flowable<ByteBuffer> source) {
-        flow = flow.concatWith(source);
+    /**
+     * Appends a source to the segments.
+     *
+     * @param source to append
+     * @param length number of bytes the source emits, or -1 if unknown
+     */
+    private void add(Flowable<ByteBuffer> source, long length) {
+        flush();
+        flowSize = (flowSize < 0 || length < 0) ? -1 : flowSize + length;
+        segments.add(source);
     }
 
 }
\ No newline at end of file
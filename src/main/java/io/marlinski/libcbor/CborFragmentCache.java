@@ -0,0 +1,176 @@
+package io.marlinski.libcbor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A CborFragmentCache keeps the encoded bytes of immutable sub-objects, such as peer
+ * descriptors or static metadata maps, so they are encoded once and then spliced into every
+ * message that embeds them. The cache is bounded, the least recently used fragment is evicted
+ * when it is full.
+ *
+ * <p>Objects registered with {@link #register(Object)} are keyed by identity. An encoder set up
+ * with {@link CborEncoder#fragments(CborFragmentCache)} merges their cached bytes whenever it
+ * meets them in cbor_encode_object, including nested in maps, collections and arrays:
+ *
+ * <pre>
+ * CborFragmentCache cache = new CborFragmentCache(512);
+ * cache.register(descriptor);
+ *
+ * CBOR.encoder().fragments(cache).cbor_encode_object(message);
+ * </pre>
+ *
+ * <p>Fragments can also be keyed by a user key with {@link #get(Object, FragmentCallback)} and
+ * merged with {@link CborEncoder#merge(EncodedCbor)}. A registered object must not be modified,
+ * or it must be invalidated first. The cache can be shared between threads.
+ */
+public class CborFragmentCache {
+
+    public interface FragmentCallback {
+        void onFragment(CborEncoder encoder) throws CBOR.CborEncodingUnknown;
+    }
+
+    /**
+     * Compares the wrapped object by identity.
+     */
+    private static final class Identity {
+        final Object o;
+
+        Identity(Object o) {
+            this.o = o;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Identity) && ((Identity) other).o == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(o);
+        }
+    }
+
+    private final LinkedHashMap<Object, EncodedCbor> fragments;
+    private boolean deterministic;
+    private boolean preferredFloats;
+
+    /**
+     * @param max_entries maximum number of fragments kept
+     */
+    public CborFragmentCache(int max_entries) {
+        if (max_entries <= 0) {
+            throw new IllegalArgumentException("cache must hold at least one fragment");
+        }
+        this.fragments = new LinkedHashMap<Object, EncodedCbor>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, EncodedCbor> eldest) {
+                return size() > max_entries;
+            }
+        };
+    }
+
+    /**
+     * Encode the fragments with {@link CborEncoder#deterministic()}. Only deterministic encoders
+     * splice the fragments of this cache. Must be called before any fragment is added.
+     *
+     * @return this cache
+     */
+    public CborFragmentCache deterministic() {
+        this.deterministic = true;
+        this.preferredFloats = true;
+        return this;
+    }
+
+    /**
+     * Encode the fragments with {@link CborEncoder#preferredFloats()}. Must be called before any
+     * fragment is added.
+     *
+     * @return this cache
+     */
+    public CborFragmentCache preferredFloats() {
+        this.preferredFloats = true;
+        return this;
+    }
+
+    /**
+     * Encodes an immutable object and keeps its bytes, keyed by the identity of the object.
+     *
+     * @param o object to cache, it must be encodable with cbor_encode_object
+     * @return the encoded fragment
+     * @throws CBOR.CborEncodingUnknown if the object is not of an accepted type
+     */
+    public EncodedCbor register(Object o) throws CBOR.CborEncodingUnknown {
+        return get(new Identity(o), enc -> enc.cbor_encode_object(o));
+    }
+
+    /**
+     * Returns the fragment cached under a user key, encoding it with the callback on a miss.
+     *
+     * @param key of the fragment, compared with equals
+     * @param cb encodes the fragment
+     * @return the encoded fragment
+     * @throws CBOR.CborEncodingUnknown if the callback failed
+     */
+    public EncodedCbor get(Object key, FragmentCallback cb) throws CBOR.CborEncodingUnknown {
+        EncodedCbor fragment;
+        synchronized (this) {
+            fragment = fragments.get(key);
+        }
+        if (fragment == null) {
+            CborEncoder enc = new CborEncoder();
+            if (deterministic) {
+                enc.deterministic();
+            } else if (preferredFloats) {
+                enc.preferredFloats();
+            }
+            cb.onFragment(enc);
+            fragment = enc.freeze();
+            synchronized (this) {
+                fragments.put(key, fragment);
+            }
+        }
+        return fragment;
+    }
+
+    /**
+     * @param o object that may have been registered
+     * @return its fragment or null if it is not cached
+     */
+    synchronized EncodedCbor lookup(Object o) {
+        if (fragments.isEmpty()) {
+            return null;
+        }
+        return fragments.get(new Identity(o));
+    }
+
+    /**
+     * Removes the fragment of a registered object.
+     *
+     * @param o registered object
+     */
+    public synchronized void invalidate(Object o) {
+        fragments.remove(new Identity(o));
+    }
+
+    /**
+     * Removes the fragment cached under a user key.
+     *
+     * @param key of the fragment
+     */
+    public synchronized void invalidateKey(Object key) {
+        fragments.remove(key);
+    }
+
+    public synchronized void clear() {
+        fragments.clear();
+    }
+
+    public synchronized int size() {
+        return fragments.size();
+    }
+
+    boolean matches(boolean deterministic, boolean preferredFloats) {
+        return this.deterministic == deterministic && this.preferredFloats == preferredFloats;
+    }
+}
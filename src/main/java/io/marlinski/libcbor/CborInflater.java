@@ -0,0 +1,101 @@
+package io.marlinski.libcbor;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import io.marlinski.libcbor.rxparser.RxParserException;
+import io.reactivex.rxjava3.core.Observable;
+
+/**
+ * CborInflater decompresses a stream produced by {@link CborDeflater} in front of a
+ * {@link CborParser} or an {@link io.marlinski.libcbor.rxparser.RxParser}. The same Inflater,
+ * input and output buffers are used for the whole stream. The inflated ByteBuffers wrap the
+ * same output array and must be consumed before the callback returns.
+ */
+public class CborInflater {
+
+    private static final int bufferSize = 8192;
+
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] input = new byte[bufferSize];
+    private final byte[] output = new byte[bufferSize];
+
+    public interface InflatedCallback {
+        void onInflated(ByteBuffer buffer) throws RxParserException;
+    }
+
+    /**
+     * Inflate a compressed buffer and hand every decompressed chunk to the callback.
+     *
+     * @param compressed buffer, it is entirely consumed
+     * @param cb called with the decompressed bytes
+     * @throws RxParserException if the stream is corrupted or if the callback failed
+     */
+    public void inflate(ByteBuffer compressed, InflatedCallback cb) throws RxParserException {
+        while (compressed.hasRemaining()) {
+            // Inflater only takes arrays, the compressed bytes are copied in the input buffer
+            int length = Math.min(compressed.remaining(), input.length);
+            compressed.get(input, 0, length);
+            inflater.setInput(input, 0, length);
+            try {
+                // inflate until no more output, output may remain pending once the input is consumed
+                while (true) {
+                    int n = inflater.inflate(output);
+                    if (n > 0) {
+                        cb.onInflated(ByteBuffer.wrap(output, 0, n));
+                    } else if (inflater.needsDictionary()) {
+                        throw new RxParserException("CborInflater", "preset dictionary is not supported");
+                    } else {
+                        break;
+                    }
+                }
+            } catch (DataFormatException dfe) {
+                throw new RxParserException("CborInflater", dfe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Inflate a compressed buffer straight into a parser. Every time the parser is done with an
+     * item it is reset and parsing goes on with the next one.
+     *
+     * @param parser to feed
+     * @param compressed buffer, it is entirely consumed
+     * @return the number of items the parser completed
+     * @throws RxParserException if the stream is corrupted or if the parser failed
+     */
+    public int read(CborParser parser, ByteBuffer compressed) throws RxParserException {
+        int[] done = {0};
+        inflate(compressed, buffer -> {
+            while (buffer.hasRemaining()) {
+                if (parser.read(buffer)) {
+                    done[0]++;
+                    parser.reset();
+                }
+            }
+        });
+        return done[0];
+    }
+
+    /**
+     * Inflate a compressed stream, typically in front of an RxParser. The emitted buffers wrap
+     * the shared output array so the subscriber must consume them synchronously.
+     *
+     * @param compressed stream
+     * @return decompressed stream
+     */
+    public Observable<ByteBuffer> inflate(Observable<ByteBuffer> compressed) {
+        return compressed.concatMap(buffer -> Observable.create(emitter -> {
+            inflate(buffer, emitter::onNext);
+            emitter.onComplete();
+        }));
+    }
+
+    /**
+     * Release the native resources of the decompressor, the inflater cannot be used anymore.
+     */
+    public void end() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,119 @@
+package io.marlinski.libcbor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A CborKeyOrder holds the keys of a map sorted in the bytewise lexicographic order of their
+ * deterministic encoding (RFC 8949 section 4.2.1), together with the encoded keys. Building it
+ * once for maps that always have the same key set saves encoding and sorting the keys every time
+ * such a map is encoded:
+ *
+ * <pre>
+ * CborKeyOrder order = new CborKeyOrder(Arrays.asList("id", "ts", "value"));
+ *
+ * CBOR.encoder().cbor_encode_map(sample, order);
+ * </pre>
+ */
+public class CborKeyOrder {
+
+    private final Object[] keys;
+    private final byte[][] encoded;
+
+    /**
+     * Encodes and sorts a set of keys.
+     *
+     * @param keys of the map, each must be encodable with cbor_encode_object
+     * @throws CBOR.CborEncodingUnknown if a key is not of an accepted type
+     * @throws IllegalArgumentException if two keys have the same encoding, such as 1 and 1L
+     */
+    public CborKeyOrder(Collection<?> keys) throws CBOR.CborEncodingUnknown {
+        int n = keys.size();
+        Object[] unsorted = keys.toArray();
+        byte[][] unsorted_encoded = new byte[n][];
+        Integer[] index = new Integer[n];
+        CborEncoder scratch = new CborEncoder();
+        for (int i = 0; i < n; i++) {
+            unsorted_encoded[i] = encodeKey(scratch, unsorted[i]);
+            index[i] = i;
+        }
+        Arrays.sort(index, (a, b) -> compare(unsorted_encoded[a], unsorted_encoded[b]));
+        for (int i = 1; i < n; i++) {
+            if (compare(unsorted_encoded[index[i - 1]], unsorted_encoded[index[i]]) == 0) {
+                throw new IllegalArgumentException("keys " + unsorted[index[i - 1]] + " and "
+                        + unsorted[index[i]] + " have the same encoding");
+            }
+        }
+
+        this.keys = new Object[n];
+        this.encoded = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            this.keys[i] = unsorted[index[i]];
+            this.encoded[i] = unsorted_encoded[index[i]];
+        }
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    Object key(int i) {
+        return keys[i];
+    }
+
+    byte[] encodedKey(int i) {
+        return encoded[i];
+    }
+
+    /**
+     * Checks that a map has exactly the keys of this order.
+     *
+     * @param m map to check
+     * @return true if the map key set matches
+     */
+    public boolean matches(Map<?, ?> m) {
+        if (m.size() != keys.length) {
+            return false;
+        }
+        for (Object key : keys) {
+            if (!m.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the deterministic encoding of a key.
+     *
+     * @param scratch encoder reused for every key, it is reset after each key
+     * @param key to encode
+     * @return encoded key
+     * @throws CBOR.CborEncodingUnknown if the key is not of an accepted type
+     */
+    static byte[] encodeKey(CborEncoder scratch, Object key) throws CBOR.CborEncodingUnknown {
+        try {
+            return scratch.deterministic().cbor_encode_object(key).toByteArray();
+        } finally {
+            scratch.reset();
+        }
+    }
+
+    /**
+     * Bytewise lexicographic comparison, a shorter key sorts first.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -1,12 +1,22 @@
 package io.marlinski.libcbor;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
@@ -63,6 +73,21 @@ public class CborParser {
             return this;
         }
 
+        /**
+         * @return the table of the innermost open stringref namespace, or null
+         */
+        StringRefNamespace stringref_namespace() {
+            return stringrefs.peek();
+        }
+
+        void open_stringref_namespace() {
+            stringrefs.push(new StringRefNamespace());
+        }
+
+        boolean close_stringref_namespace() {
+            return stringrefs.poll() != null;
+        }
+
         /**
          * set an object in a map so it is accessible by any other callback.
          * It overwrites any object that was already saved with the same key.
@@ -139,6 +164,7 @@ public class CborParser {
     private Map<String, Object> items = new HashMap<>();
     private ParserState state = null;
     private Object[] register = new Object[10];
+    private ArrayDeque<StringRefNamespace> stringrefs = new ArrayDeque<>();
 
 
     private boolean dequeue() {
@@ -261,6 +287,7 @@ public class CborParser {
         resetQueue.clear();
         filters.clear();
         items.clear();
+        stringrefs.clear();
         for(int i = 0; i < register.length; i++) {
             register[i] = null;
         }
@@ -474,6 +501,40 @@ public class CborParser {
         return this;
     }
 
+    /**
+     * Parses a stringref namespace tag (256). Until cbor_close_stringref_namespace, the text and
+     * byte string parsers of this parser resolve stringrefs (tag 25) and record the strings of
+     * the namespace. The strings must be parsed by this parser or by parsers inserted into it.
+     *
+     * @return this parser
+     */
+    public CborParser cbor_open_stringref_namespace() {
+        parserQueue.add(new CborParseTag() {
+            @Override
+            public ParserState onSuccess(long tag) throws RxParserException {
+                if (tag != Constants.CborKnownTags.CborStringRefNamespaceTag) {
+                    throw new RxParserException("CborParser", "Expected stringref namespace tag but " + tag + " found");
+                }
+                ((ParserInCallback) parser_ref).open_stringref_namespace();
+                return null;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Closes the namespace opened by the last cbor_open_stringref_namespace.
+     *
+     * @return this parser
+     */
+    public CborParser cbor_close_stringref_namespace() {
+        return do_here(p -> {
+            if (!p.close_stringref_namespace()) {
+                throw new RxParserException("CborParser", "no stringref namespace is open");
+            }
+        });
+    }
+
     public CborParser do_insert_if(ConditionCallback ccb, CborParser parser) {
         do_here((p) -> {
             if (ccb.condition(p)) {
@@ -487,7 +548,8 @@ public class CborParser {
         parserQueue.add(new CborParseGenericItem() {
             @Override
             public ParserState onSuccess(CBOR.DataItem item) throws RxParserException {
-                cb.onItemParsed((ParserInCallback) parser_ref, item);
+                ParserInCallback p = (ParserInCallback) parser_ref;
+                cb.onItemParsed(p, resolveReferences(item, p.stringref_namespace()));
                 return null;
             }
         });
@@ -498,13 +560,134 @@ public class CborParser {
         parserQueue.add(new CborParseGenericItem(types) {
             @Override
             public ParserState onSuccess(CBOR.DataItem item) throws RxParserException {
-                cb.onItemParsed((ParserInCallback) parser_ref, item);
+                ParserInCallback p = (ParserInCallback) parser_ref;
+                cb.onItemParsed(p, resolveReferences(item, p.stringref_namespace()));
                 return null;
             }
         });
         return this;
     }
 
+    /**
+     * Resolves the references of a generic item, walking it in the order it was encoded:
+     * <ul>
+     * <li>every item tagged 29 is replaced by the instance of the item tagged 28 it refers to,
+     * so a shared value is parsed into a single DataItem referenced from every place it
+     * appears;</li>
+     * <li>every stringref (tag 25) is replaced by the string it refers to in the innermost
+     * stringref namespace, opened either by a tag 256 or by cbor_open_stringref_namespace.</li>
+     * </ul>
+     *
+     * @param item top-level item
+     * @param namespace open in the parser when the item was parsed, or null
+     * @return the item with its references resolved
+     * @throws RxParserException if a reference points to no value
+     */
+    static CBOR.DataItem resolveReferences(CBOR.DataItem item, StringRefNamespace namespace) throws RxParserException {
+        return resolveReferences(item, new ArrayList<>(), namespace);
+    }
+
+    private static CBOR.DataItem resolveReferences(CBOR.DataItem item, ArrayList<CBOR.DataItem> shared,
+                                                   StringRefNamespace namespace) throws RxParserException {
+        if (item.tags != null && !item.tags.isEmpty()) {
+            if (item.tags.contains((long) Constants.CborKnownTags.CborStringRefNamespaceTag)) {
+                namespace = new StringRefNamespace();
+            }
+            if (CBOR.IntegerItem.ofType(item)) {
+                if (item.tags.contains((long) Constants.CborKnownTags.CborSharedRefTag)) {
+                    long index = ((CBOR.IntegerItem) item).value();
+                    if (index < 0 || index >= shared.size()) {
+                        throw new RxParserException("CborParser", "unknown shared value: " + index);
+                    }
+                    return shared.get((int) index);
+                }
+                if (item.tags.contains((long) Constants.CborKnownTags.CborStringRefTag) && namespace != null) {
+                    return resolveStringRef((CBOR.IntegerItem) item, namespace);
+                }
+            }
+            if (item.tags.contains((long) Constants.CborKnownTags.CborShareableTag)) {
+                // registered before its content, in the order the encoder numbered them
+                shared.add(item);
+            }
+        }
+
+        if (namespace != null && !item.indefinite) {
+            if (CBOR.TextStringItem.ofType(item)) {
+                namespace.add(Constants.CborMajorTypes.TextStringType, ((String) item.item).getBytes(StandardCharsets.UTF_8));
+            } else if (CBOR.ByteStringItem.ofType(item)) {
+                ByteBuffer buf = ((ByteBuffer) item.item).duplicate();
+                if (StringRefNamespace.isReferenceable(buf.remaining(), namespace.size())) {
+                    byte[] bytes = new byte[buf.remaining()];
+                    buf.get(bytes);
+                    namespace.add(Constants.CborMajorTypes.ByteStringType, bytes);
+                }
+            }
+        }
+
+        if (CBOR.ArrayItem.ofType(item)) {
+            Collection<?> array = ((CBOR.ArrayItem) item).value();
+            ArrayList<CBOR.DataItem> resolved = null;
+            int i = 0;
+            for (Object element : array) {
+                CBOR.DataItem value = resolveReferences((CBOR.DataItem) element, shared, namespace);
+                if (resolved == null && value != element) {
+                    // rebuilt from the first changed element on, the elements seen so far are kept
+                    resolved = new ArrayList<>(array.size());
+                    Iterator<?> previous = array.iterator();
+                    for (int j = 0; j < i; j++) {
+                        resolved.add((CBOR.DataItem) previous.next());
+                    }
+                }
+                if (resolved != null) {
+                    resolved.add(value);
+                }
+                i++;
+            }
+            if (resolved != null) {
+                item.item = resolved;
+            }
+        } else if (CBOR.MapItem.ofType(item)) {
+            Map<?, ?> map = ((CBOR.MapItem) item).value();
+            Map<CBOR.DataItem, CBOR.DataItem> resolved = null;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                CBOR.DataItem key = resolveReferences((CBOR.DataItem) entry.getKey(), shared, namespace);
+                CBOR.DataItem value = resolveReferences((CBOR.DataItem) entry.getValue(), shared, namespace);
+                if (resolved == null && (key != entry.getKey() || value != entry.getValue())) {
+                    // rebuilt from the first changed entry on, the keys seen so far are kept
+                    resolved = new LinkedHashMap<>();
+                    for (Map.Entry<?, ?> previous : map.entrySet()) {
+                        if (previous == entry) {
+                            break;
+                        }
+                        resolved.put((CBOR.DataItem) previous.getKey(), (CBOR.DataItem) previous.getValue());
+                    }
+                }
+                if (resolved != null) {
+                    resolved.put(key, value);
+                }
+            }
+            if (resolved != null) {
+                item.item = resolved;
+            }
+        }
+        return item;
+    }
+
+    private static CBOR.DataItem resolveStringRef(CBOR.IntegerItem ref, StringRefNamespace namespace)
+            throws RxParserException {
+        StringRefNamespace.Entry entry = namespace.get(ref.value());
+        if (entry == null) {
+            throw new RxParserException("CborParser", "unknown stringref: " + ref.value());
+        }
+        // the string keeps the other tags of the reference
+        LinkedList<Long> tags = new LinkedList<>(ref.tags);
+        tags.remove((long) Constants.CborKnownTags.CborStringRefTag);
+        if (entry.majorType == Constants.CborMajorTypes.TextStringType) {
+            return new CBOR.TextStringItem(tags, new String(entry.bytes, StandardCharsets.UTF_8));
+        }
+        return new CBOR.ByteStringItem(tags, ByteBuffer.wrap(entry.bytes).asReadOnlyBuffer());
+    }
+
     public CborParser cbor_or(CborParser p1, CborParser p2) {
         CborParser[] contender = {p1, p2};
         parserQueue.add(new CborOr(contender) {
@@ -746,6 +929,79 @@ public class CborParser {
         return this;
     }
 
+    /**
+     * Parse a RFC 8746 typed array. The callback receives a view over the received bytes whose
+     * type depends on the typed array tag: ByteBuffer for 8-bit integers, ShortBuffer, IntBuffer
+     * or LongBuffer for 16, 32 and 64-bit integers, FloatBuffer for half and single precision
+     * floating point numbers and DoubleBuffer for double precision floating point numbers.
+     * Unsigned integers are returned as is and must be masked by the callback.
+     *
+     * @param cb called with the typed array view
+     * @return this parser
+     */
+    public CborParser cbor_parse_typed_array(ParsedItemWithTagsCallback<Buffer> cb) {
+        parserQueue.add(new CborParseTypedArray() {
+            @Override
+            public ParserState onTypedArray(LinkedList<Long> tags, long tag, ByteBuffer payload) throws RxParserException {
+                cb.onItemParsed((ParserInCallback) parser_ref, tags, typedArrayView(tag, payload));
+                return null;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Parse a RFC 8746 typed array of integers into an array of long.
+     *
+     * @param cb called with the decoded values
+     * @return this parser
+     */
+    public CborParser cbor_parse_typed_array_long(ParsedItemWithTagsCallback<long[]> cb) {
+        parserQueue.add(new CborParseTypedArray() {
+            @Override
+            public ParserState onTypedArray(LinkedList<Long> tags, long tag, ByteBuffer payload) throws RxParserException {
+                cb.onItemParsed((ParserInCallback) parser_ref, tags, typedArrayToLong(tag, typedArrayView(tag, payload)));
+                return null;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Parse a RFC 8746 typed array of floating point numbers or integers into an array of
+     * double.
+     *
+     * @param cb called with the decoded values
+     * @return this parser
+     */
+    public CborParser cbor_parse_typed_array_double(ParsedItemWithTagsCallback<double[]> cb) {
+        parserQueue.add(new CborParseTypedArray() {
+            @Override
+            public ParserState onTypedArray(LinkedList<Long> tags, long tag, ByteBuffer payload) throws RxParserException {
+                Buffer view = typedArrayView(tag, payload);
+                double[] array;
+                if (view instanceof DoubleBuffer) {
+                    array = new double[view.remaining()];
+                    ((DoubleBuffer) view).get(array);
+                } else if (view instanceof FloatBuffer) {
+                    array = new double[view.remaining()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = ((FloatBuffer) view).get();
+                    }
+                } else {
+                    long[] values = typedArrayToLong(tag, view);
+                    array = new double[values.length];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = values[i];
+                    }
+                }
+                cb.onItemParsed((ParserInCallback) parser_ref, tags, array);
+                return null;
+            }
+        });
+        return this;
+    }
+
     public CborParser cbor_parse_text_string(ChunkCallback<String> cb) {
         return cbor_parse_text_string(null, cb, null);
     }
@@ -1333,6 +1589,12 @@ public class CborParser {
         };
 
         CborParseByteStringUnsafe parse_byte_string = new CborParseByteStringUnsafe() {
+            long size;
+
+            {
+                stringref_aware = false;
+            }
+
             @Override
             public void onTagFound(long tag) {
                 // do nothing
@@ -1340,15 +1602,24 @@ public class CborParser {
 
             @Override
             public void onContainerOpen(long size) {
+                this.size = size;
             }
 
             @Override
             public ParserState onSuccessUnsafe(ByteBuffer obj) throws RxParserException {
-                return CborParseGenericItem.this.onSuccess(new CBOR.ByteStringItem(tags, obj));
+                CBOR.DataItem item = new CBOR.ByteStringItem(tags, obj);
+                item.indefinite = (size < 0);
+                return CborParseGenericItem.this.onSuccess(item);
             }
         };
 
         CborParseTextStringUnsafe parse_text_string = new CborParseTextStringUnsafe() {
+            long size;
+
+            {
+                stringref_aware = false;
+            }
+
             @Override
             public void onTagFound(long tag) {
                 // do nothing
@@ -1356,13 +1627,15 @@ public class CborParser {
 
             @Override
             public void onContainerOpen(long size) {
-
+                this.size = size;
             }
 
             @Override
             public ParserState onSuccessUnsafe(ByteBuffer obj) throws RxParserException {
                 String str = StandardCharsets.UTF_8.decode(obj).toString();
-                return CborParseGenericItem.this.onSuccess(new CBOR.TextStringItem(tags, str));
+                CBOR.DataItem item = new CBOR.TextStringItem(tags, str);
+                item.indefinite = (size < 0);
+                return CborParseGenericItem.this.onSuccess(item);
             }
         };
 
@@ -1415,7 +1688,7 @@ public class CborParser {
                         }
                         if (size == 0) {
                             // it is a win, exit the recursion
-                            return outer.onSuccess(new CBOR.ArrayItem(tags, array));
+                            return outer.onSuccess(new CBOR.ArrayItem(outer.tags, array));
                         }
                         // size > 0
                         return extractNestedItem();
@@ -1437,7 +1710,7 @@ public class CborParser {
             @Override
             public ParserState onContainerOpen(long size) throws RxParserException {
                 this.size = size;
-                map = new HashMap<>();
+                map = new LinkedHashMap<>();
                 if (size < 0) {
                     return checkBreak;
                 }
@@ -1483,7 +1756,7 @@ public class CborParser {
                             return checkBreak;
                         }
                         if (size == 0) {
-                            return outer.onSuccess(new CBOR.MapItem(tags, map));
+                            return outer.onSuccess(new CBOR.MapItem(outer.tags, map));
                         }
                         // size > 0
                         return extractNextNestedKey();
@@ -1514,6 +1787,101 @@ public class CborParser {
         public abstract ParserState onSuccess(CBOR.DataItem item) throws RxParserException;
     }
 
+    private abstract static class CborParseTypedArray extends CborParseByteStringUnsafe {
+        LinkedList<Long> tags = new LinkedList<>();
+
+        @Override
+        public void onTagFound(long tag) {
+            tags.add(tag);
+        }
+
+        @Override
+        public void onContainerOpen(long size) {
+            // numeric payloads are usually large, allocate once
+            if (size > output.capacity()) {
+                output = ByteBuffer.allocate((int) size);
+            }
+        }
+
+        @Override
+        public ParserState onSuccessUnsafe(ByteBuffer payload) throws RxParserException {
+            Long tag = tags.peekLast();
+            if (tag == null
+                    || tag < Constants.CborTypedArrayTags.FirstTag
+                    || tag > Constants.CborTypedArrayTags.LastTag
+                    || tag == Constants.CborTypedArrayTags.ReservedTag) {
+                throw new RxParserException("CborParseTypedArray", "Expected a typed array tag but got: " + tag);
+            }
+            return onTypedArray(tags, tag, payload);
+        }
+
+        public abstract ParserState onTypedArray(LinkedList<Long> tags, long tag, ByteBuffer payload) throws RxParserException;
+    }
+
+    private static Buffer typedArrayView(long tag, ByteBuffer payload) throws RxParserException {
+        int t = (int) tag;
+        int ll = t & Constants.CborTypedArrayTags.LengthMask;
+        boolean is_float = (t & Constants.CborTypedArrayTags.FloatBit) != 0;
+        int element_size = is_float ? 2 << ll : 1 << ll;
+        if (payload.remaining() % element_size != 0) {
+            throw new RxParserException("CborParseTypedArray", "Typed array length " + payload.remaining() + " is not a multiple of " + element_size);
+        }
+
+        ByteBuffer b = payload.slice().order(((t & Constants.CborTypedArrayTags.LittleEndianBit) != 0) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        if (!is_float) {
+            switch (ll) {
+                case 0:
+                    return b;
+                case 1:
+                    return b.asShortBuffer();
+                case 2:
+                    return b.asIntBuffer();
+                default:
+                    return b.asLongBuffer();
+            }
+        }
+        switch (ll) {
+            case 0:
+                float[] array = new float[b.remaining() / 2];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (float) CborWriter.halfPrecisionToDouble(b.getShort());
+                }
+                return FloatBuffer.wrap(array);
+            case 1:
+                return b.asFloatBuffer();
+            case 2:
+                return b.asDoubleBuffer();
+            default:
+                throw new RxParserException("CborParseTypedArray", "128-bit floating point numbers are not supported");
+        }
+    }
+
+    private static long[] typedArrayToLong(long tag, Buffer view) throws RxParserException {
+        boolean signed = (tag & Constants.CborTypedArrayTags.SignedBit) != 0;
+        long[] array = new long[view.remaining()];
+        if (view instanceof LongBuffer) {
+            ((LongBuffer) view).get(array);
+        } else if (view instanceof IntBuffer) {
+            for (int i = 0; i < array.length; i++) {
+                int v = ((IntBuffer) view).get();
+                array[i] = signed ? v : v & 0xffffffffL;
+            }
+        } else if (view instanceof ShortBuffer) {
+            for (int i = 0; i < array.length; i++) {
+                short v = ((ShortBuffer) view).get();
+                array[i] = signed ? v : v & 0xffff;
+            }
+        } else if (view instanceof ByteBuffer) {
+            for (int i = 0; i < array.length; i++) {
+                byte v = ((ByteBuffer) view).get();
+                array[i] = signed ? v : v & 0xff;
+            }
+        } else {
+            throw new RxParserException("CborParseTypedArray", "Expected a typed array of integers, got tag: " + tag);
+        }
+        return array;
+    }
+
     private abstract static class CborParseBreak extends CborParseSimpleValue {
         @Override
         public ParserState onSimplevalue(int value) throws RxParserException {
@@ -1907,21 +2275,7 @@ public class CborParser {
         ShortState getUInt16 = new ShortState() {
             @Override
             public ParserState onSuccess(Short s) throws RxParserException {
-                int exp = (s >> 10) & 0x1f;
-                int mant = s & 0x3ff;
-
-                double val;
-                if (exp == 0) {
-                    val = mant * Math.pow(2, -24);
-                } else if (exp != 31) {
-                    val = (mant + 1024) * Math.pow(2, exp - 25);
-                } else if (mant != 0) {
-                    val = Double.NaN;
-                } else {
-                    val = Double.POSITIVE_INFINITY;
-                }
-
-                return CborParseFloat.this.onSuccess(((s & 0x8000) == 0) ? val : -val);
+                return CborParseFloat.this.onSuccess(CborWriter.halfPrecisionToDouble(s));
             }
         };
 
@@ -2056,24 +2410,70 @@ public class CborParser {
         int max_chunk_size = 2048;
         ByteBuffer chunk = null;
 
+        /* false for the generic parser that resolves stringrefs once the item is parsed */
+        boolean stringref_aware = true;
+        boolean stringref = false;
+        StringRefNamespace namespace;
+        ByteBuffer recorded;
+
         CborParseString(int expectedType) {
             super(true);
             this.expectedType = expectedType;
         }
 
+        @Override
+        boolean consumeTag(long tag) {
+            if (tag != Constants.CborKnownTags.CborStringRefTag || !stringref_aware || !(parser_ref instanceof ParserInCallback)) {
+                return false;
+            }
+            namespace = ((ParserInCallback) parser_ref).stringref_namespace();
+            stringref = (namespace != null);
+            return stringref;
+        }
+
         @Override
         public ParserState onItemFound(int majorType, byte b) throws RxParserException {
+            if (stringref) {
+                if (majorType != Constants.CborMajorTypes.UnsignedIntegerType) {
+                    throw new RxParserException("CborParseString", "Expected stringref index but major type " + majorType + " found");
+                }
+                return extractStringRef;
+            }
             if (majorType != expectedType) {
                 throw new RxParserException("CborParseString", "Expected major type: " + expectedType + " but " + majorType + " found");
             }
             return extractStringSize;
         }
 
+        ExtractInteger extractStringRef = new ExtractInteger() {
+            @Override
+            public ParserState onSuccess(long index) throws RxParserException {
+                StringRefNamespace.Entry entry = namespace.get(index);
+                if (entry == null) {
+                    throw new RxParserException("CborParseString", "unknown stringref: " + index);
+                }
+                if (entry.majorType != expectedType) {
+                    throw new RxParserException("CborParseString", "Expected major type: " + expectedType + " but stringref " + index + " is of type " + entry.majorType);
+                }
+                stringref = false;
+                onContainerOpen(entry.bytes.length);
+                CborParseString.this.onNextChunk(ByteBuffer.wrap(entry.bytes));
+                return CborParseString.this.onSuccess();
+            }
+        };
+
         ExtractInteger extractStringSize = new ExtractInteger() {
             @Override
             public ParserState onSuccess(long stringSize) throws RxParserException {
                 bytesExpected = stringSize;
                 onContainerOpen(stringSize);
+                // definite-length strings of a namespace are recorded for later stringrefs
+                namespace = (stringref_aware && parser_ref instanceof ParserInCallback)
+                        ? ((ParserInCallback) parser_ref).stringref_namespace()
+                        : null;
+                if (namespace != null && StringRefNamespace.isReferenceable(stringSize, namespace.size())) {
+                    recorded = ByteBuffer.allocate((int) stringSize);
+                }
                 if (bytesExpected == 0) {
                     return CborParseString.this.onSuccess();
                 }
@@ -2091,7 +2491,14 @@ public class CborParser {
             @Override
             public ParserState onSuccess(ByteBuffer buffer) throws RxParserException {
                 bytesExpected -= buffer.remaining();
+                if (recorded != null) {
+                    recorded.put(buffer.duplicate());
+                }
                 if (bytesExpected == 0) {
+                    if (recorded != null) {
+                        namespace.add(expectedType, recorded.array());
+                        recorded = null;
+                    }
                     CborParseString.this.onNextChunk(buffer);
                     return CborParseString.this.onSuccess();
                 } else {
@@ -2260,11 +2667,22 @@ public class CborParser {
         ExtractInteger extractTag = new ExtractInteger() {
             @Override
             public ParserState onSuccess(long tag) {
-                onTagFound(tag);
+                if (!consumeTag(tag)) {
+                    onTagFound(tag);
+                }
                 return ExtractTagItem.this;
             }
         };
 
+        /**
+         * Lets a parser handle a tag itself instead of reporting it.
+         *
+         * @return true if the tag must not be reported to onTagFound
+         */
+        boolean consumeTag(long tag) {
+            return false;
+        }
+
         public abstract void onTagFound(long tag);
 
         public abstract ParserState onItemFound(int majorType, byte b) throws RxParserException;
@@ -0,0 +1,155 @@
+package io.marlinski.libcbor;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A CborTemplate is a precompiled message skeleton. The constant parts of the message are
+ * encoded once into byte arrays and only the variable slots are encoded every time the template
+ * is filled. For instance, the following template encodes a header with a constant version and
+ * two variable fields:
+ *
+ * <pre>
+ * CborTemplate header = CBOR.template()
+ *         .constant(CBOR.encoder()
+ *                 .cbor_start_array(3)
+ *                 .cbor_encode_int(VERSION))
+ *         .slot()
+ *         .slot()
+ *         .build();
+ *
+ * CborEncoder enc = header.fill(flag, sequence);
+ * </pre>
+ */
+public class CborTemplate {
+
+    public interface SlotCallback {
+        void onSlot(CborEncoder encoder, int slot) throws CBOR.CborEncodingUnknown;
+    }
+
+    public interface SlotWriterCallback {
+        void onSlot(CborWriter writer, int slot) throws CBOR.CborEncodingUnknown;
+    }
+
+    public static class Builder {
+        private LinkedList<byte[]> segments = new LinkedList<>();
+        private CborWriter current = new CborWriter();
+
+        /**
+         * Append the bytes of a constant encoder. The encoder is consumed once and never
+         * referenced again.
+         *
+         * @param encoder constant part of the template
+         * @return this builder
+         */
+        public Builder constant(CborEncoder encoder) {
+            for (ByteBuffer buf : encoder.observe().blockingIterable()) {
+                current.write(buf);
+            }
+            return this;
+        }
+
+        /**
+         * Append a variable slot. A slot must be filled with exactly one item.
+         *
+         * @return this builder
+         */
+        public Builder slot() {
+            segments.add(current.toByteArray());
+            current.clear();
+            return this;
+        }
+
+        public CborTemplate build() {
+            segments.add(current.toByteArray());
+            return new CborTemplate(segments.toArray(new byte[0][]));
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final byte[][] segments;
+    private final long constantSize;
+
+    private CborTemplate(byte[][] segments) {
+        this.segments = segments;
+        long size = 0;
+        for (byte[] segment : segments) {
+            size += segment.length;
+        }
+        this.constantSize = size;
+    }
+
+    /**
+     * @return the number of variable slots in this template
+     */
+    public int slots() {
+        return segments.length - 1;
+    }
+
+    /**
+     * @return the number of bytes taken by the constant parts of this template
+     */
+    public long constantSize() {
+        return constantSize;
+    }
+
+    /**
+     * Fill every slot with an object encoded with {@link CborEncoder#cbor_encode_object(Object)}.
+     * A CborEncoder may also be given as a value, in which case it is merged.
+     *
+     * @param values one value per slot
+     * @return a new encoder
+     * @throws CBOR.CborEncodingUnknown if a value is not of an accepted type
+     */
+    public CborEncoder fill(Object... values) throws CBOR.CborEncodingUnknown {
+        if (values.length != slots()) {
+            throw new IllegalArgumentException("template has " + slots() + " slots, got " + values.length + " values");
+        }
+        return fill((enc, slot) -> {
+            if (values[slot] instanceof CborEncoder) {
+                enc.merge((CborEncoder) values[slot]);
+            } else {
+                enc.cbor_encode_object(values[slot]);
+            }
+        });
+    }
+
+    /**
+     * Fill every slot by calling a callback with the encoder positioned at the slot.
+     *
+     * @param cb called once per slot, in order
+     * @return a new encoder
+     * @throws CBOR.CborEncodingUnknown if the callback failed to encode a slot
+     */
+    public CborEncoder fill(SlotCallback cb) throws CBOR.CborEncodingUnknown {
+        CborEncoder enc = CBOR.encoder();
+        for (int i = 0; i < segments.length; i++) {
+            enc.put(segments[i]);
+            if (i < segments.length - 1) {
+                cb.onSlot(enc, i);
+            }
+        }
+        return enc;
+    }
+
+    /**
+     * Write the template into a writer, calling a callback to write each slot.
+     *
+     * @param writer to write into
+     * @param cb called once per slot, in order
+     * @return the writer
+     * @throws CBOR.CborEncodingUnknown if the callback failed to encode a slot
+     */
+    public CborWriter writeTo(CborWriter writer, SlotWriterCallback cb) throws CBOR.CborEncodingUnknown {
+        for (int i = 0; i < segments.length; i++) {
+            writer.write(segments[i], 0, segments[i].length);
+            if (i < segments.length - 1) {
+                cb.onSlot(writer, i);
+            }
+        }
+        return writer;
+    }
+}
@@ -0,0 +1,716 @@
+package io.marlinski.libcbor;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * CborWriter is a synchronous CBOR encoding engine. Unlike {@link CborEncoder} that describes
+ * the encoding as a Flowable, every call to a CborWriter method writes the header bytes and the
+ * payload of the item directly into a ByteBuffer.
+ *
+ * <p>The output buffer is either supplied by the caller, in which case a
+ * BufferOverflowException is thrown if it becomes full, or is allocated and grown by the writer.
+ */
+public class CborWriter {
+
+    private static final int defaultCapacity = 256;
+    private static final int increasingFactor = 2;
+
+    /* number of bytes reserved for the header of a deferred-length container */
+    static final int deferredHeaderSize = 9;
+
+    private ByteBuffer out;
+    private final boolean growable;
+    private final int start;
+    private int mark;
+    private ArrayDeque<Integer> deferred;
+
+    /**
+     * Creates a writer backed by a growable heap buffer.
+     */
+    public CborWriter() {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Creates a writer backed by a growable heap buffer.
+     *
+     * @param capacity initial capacity of the buffer
+     */
+    public CborWriter(int capacity) {
+        this.out = ByteBuffer.allocate(Math.max(capacity, 16));
+        this.growable = true;
+        this.start = 0;
+        this.mark = 0;
+    }
+
+    /**
+     * Creates a writer that writes into the caller-supplied buffer, starting at its current
+     * position. The buffer is never reallocated and its byte order is set to big-endian as
+     * required by CBOR.
+     *
+     * @param target buffer to write into
+     */
+    public CborWriter(ByteBuffer target) {
+        this.out = target.order(ByteOrder.BIG_ENDIAN);
+        this.growable = false;
+        this.start = target.position();
+        this.mark = start;
+    }
+
+    /**
+     * Creates a writer that writes into the caller-supplied array. The array is never
+     * reallocated.
+     *
+     * @param array to write into
+     */
+    public CborWriter(byte[] array) {
+        this(ByteBuffer.wrap(array));
+    }
+
+    /* writer utility method */
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public int size() {
+        return out.position() - start;
+    }
+
+    /**
+     * Returns a view over the bytes written so far. No copy is made, the view is only valid
+     * until the next write.
+     *
+     * @return a ByteBuffer ready to be read
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer dup = out.duplicate();
+        dup.limit(out.position());
+        dup.position(start);
+        return dup;
+    }
+
+    /**
+     * @return a copy of the bytes written so far
+     */
+    public byte[] toByteArray() {
+        byte[] array = new byte[size()];
+        toByteBuffer().get(array);
+        return array;
+    }
+
+    /**
+     * Discard everything that was written, the underlying buffer is kept.
+     *
+     * @return this writer
+     */
+    public CborWriter clear() {
+        out.position(start);
+        mark = start;
+        deferred = null;
+        return this;
+    }
+
+    /**
+     * @return the capacity of the underlying buffer
+     */
+    int capacity() {
+        return out.capacity();
+    }
+
+    /**
+     * @return the number of bytes written since the last call to flush()
+     */
+    int pending() {
+        return out.position() - mark;
+    }
+
+    /**
+     * Hands out the bytes written since the last flush as a read-only slice. The slice shares
+     * the writer memory but later writes never overlap with it.
+     *
+     * @return read-only slice of the pending bytes
+     */
+    ByteBuffer flush() {
+        ByteBuffer dup = out.duplicate();
+        dup.limit(out.position());
+        dup.position(mark);
+        mark = out.position();
+        return dup.slice().asReadOnlyBuffer();
+    }
+
+    /* writer API */
+
+    public CborWriter cbor_encode_boolean(boolean b) {
+        return write_number((byte) (Constants.CborType.CborSimpleType), b ? Constants.CborSimpleValues.TrueValue : Constants.CborSimpleValues.FalseValue);
+    }
+
+    public CborWriter cbor_encode_null() {
+        return write_number((byte) (Constants.CborType.CborSimpleType), Constants.CborSimpleValues.NullValue);
+    }
+
+    public CborWriter cbor_encode_undefined() {
+        return write_number((byte) (Constants.CborType.CborSimpleType), Constants.CborSimpleValues.UndefinedValue);
+    }
+
+    public CborWriter cbor_start_array(long length) {
+        if (length < 0) {
+            return write((byte) Constants.CborJumpTable.CborArrayWithIndefiniteLength);
+        } else {
+            return write_number((byte) Constants.CborType.CborArrayType, length);
+        }
+    }
+
+    public CborWriter cbor_stop_array() {
+        return write((byte) Constants.CborInternals.BreakByte);
+    }
+
+    public CborWriter cbor_start_map(long length) {
+        if (length < 0) {
+            return write((byte) Constants.CborJumpTable.CborMapWithIndefiniteLength);
+        } else {
+            return write_number((byte) Constants.CborType.CborMapType, length);
+        }
+    }
+
+    public CborWriter cbor_stop_map() {
+        return write((byte) Constants.CborInternals.BreakByte);
+    }
+
+    /**
+     * Starts an array whose length is not known yet. The header bytes are reserved and patched
+     * by cbor_stop_deferred_array, the array is then a definite-length array.
+     *
+     * @return this writer
+     */
+    public CborWriter cbor_start_deferred_array() {
+        return start_deferred();
+    }
+
+    /**
+     * Closes the last array opened with cbor_start_deferred_array. The reserved header is
+     * patched with the definite length and the items are moved back over any unused reserved
+     * byte.
+     *
+     * @param length number of items that were written in the array
+     * @return this writer
+     */
+    public CborWriter cbor_stop_deferred_array(long length) {
+        return stop_deferred((byte) Constants.CborType.CborArrayType, length);
+    }
+
+    /**
+     * Starts a map whose length is not known yet, see cbor_start_deferred_array.
+     *
+     * @return this writer
+     */
+    public CborWriter cbor_start_deferred_map() {
+        return start_deferred();
+    }
+
+    /**
+     * Closes the last map opened with cbor_start_deferred_map.
+     *
+     * @param length number of key/value pairs that were written in the map
+     * @return this writer
+     */
+    public CborWriter cbor_stop_deferred_map(long length) {
+        return stop_deferred((byte) Constants.CborType.CborMapType, length);
+    }
+
+    private CborWriter start_deferred() {
+        if (deferred == null) {
+            deferred = new ArrayDeque<>();
+        }
+        deferred.push(reserve_header());
+        return this;
+    }
+
+    private CborWriter stop_deferred(byte shifted_mt, long length) {
+        if (deferred == null || deferred.isEmpty()) {
+            throw new IllegalStateException("no deferred container is open");
+        }
+        patch_header(deferred.pop(), shifted_mt, length);
+        return this;
+    }
+
+    public CborWriter cbor_start_byte_string(long length) {
+        if (length < 0) {
+            return write((byte) Constants.CborJumpTable.CborByteStringWithIndefiniteLength);
+        } else {
+            return write_number((byte) Constants.CborType.CborByteStringType, length);
+        }
+    }
+
+    public CborWriter cbor_stop_byte_string() {
+        return write((byte) Constants.CborInternals.BreakByte);
+    }
+
+    public CborWriter cbor_start_text_string(long length) {
+        if (length < 0) {
+            return write((byte) Constants.CborJumpTable.CborTextStringWithIndefiniteLength);
+        } else {
+            return write_number((byte) Constants.CborType.CborTextStringType, length);
+        }
+    }
+
+    public CborWriter cbor_stop_text_string() {
+        return write((byte) Constants.CborInternals.BreakByte);
+    }
+
+    public CborWriter cbor_encode_byte_string(byte[] array) {
+        if (array == null) {
+            return write_number((byte) Constants.CborType.CborByteStringType, 0);
+        }
+        write_number((byte) Constants.CborType.CborByteStringType, array.length);
+        return write(array, 0, array.length);
+    }
+
+    public CborWriter cbor_encode_byte_string(ByteBuffer buf) {
+        if (buf == null) {
+            return write_number((byte) Constants.CborType.CborByteStringType, 0);
+        }
+        write_number((byte) Constants.CborType.CborByteStringType, buf.remaining());
+        return write(buf.duplicate());
+    }
+
+    /**
+     * Add a fixed length text string. The character sequence is encoded as UTF-8 directly into
+     * the output buffer, unpaired surrogates are replaced with '?'.
+     *
+     * @param str to add
+     * @return this writer
+     */
+    public CborWriter cbor_encode_text_string(CharSequence str) {
+        long length = utf8Length(str);
+        write_number((byte) Constants.CborType.CborTextStringType, length);
+        return write_utf8(str, length);
+    }
+
+    public CborWriter cbor_encode_array(int[] array) {
+        cbor_start_array(array.length);
+        ensure(5 * array.length);
+        for (int value : array) {
+            cbor_encode_int(value);
+        }
+        return this;
+    }
+
+    public CborWriter cbor_encode_array(long[] array) {
+        cbor_start_array(array.length);
+        ensure(9 * array.length);
+        for (long value : array) {
+            cbor_encode_int(value);
+        }
+        return this;
+    }
+
+    public CborWriter cbor_encode_array(short[] array) {
+        cbor_start_array(array.length);
+        ensure(3 * array.length);
+        for (short value : array) {
+            cbor_encode_int(value);
+        }
+        return this;
+    }
+
+    public CborWriter cbor_encode_array(double[] array) {
+        cbor_start_array(array.length);
+        ensure(9 * array.length);
+        for (double value : array) {
+            out.put((byte) Constants.CborJumpTable.CborDoublePrecisionFloat);
+            out.putDouble(value);
+        }
+        return this;
+    }
+
+    public CborWriter cbor_encode_array(float[] array) {
+        cbor_start_array(array.length);
+        ensure(5 * array.length);
+        for (float value : array) {
+            out.put((byte) Constants.CborJumpTable.CborSinglePrecisionFloat);
+            out.putFloat(value);
+        }
+        return this;
+    }
+
+    public CborWriter cbor_encode_array(boolean[] array) {
+        cbor_start_array(array.length);
+        ensure(array.length);
+        for (boolean value : array) {
+            out.put((byte) (value ? Constants.CborJumpTable.CborBooleanTrue : Constants.CborJumpTable.CborBooleanFalse));
+        }
+        return this;
+    }
+
+    public CborWriter cbor_encode_tag(long tag) {
+        return write_number((byte) Constants.CborType.CborTagType, tag);
+    }
+
+    public CborWriter cbor_encode_double(double value) {
+        ensure(9);
+        out.put((byte) Constants.CborJumpTable.CborDoublePrecisionFloat);
+        out.putDouble(value);
+        return this;
+    }
+
+    public CborWriter cbor_encode_float(float value) {
+        ensure(5);
+        out.put((byte) Constants.CborJumpTable.CborSinglePrecisionFloat);
+        out.putFloat(value);
+        return this;
+    }
+
+    public CborWriter cbor_encode_half_float(float value) {
+        ensure(3);
+        out.put((byte) Constants.CborJumpTable.CborHalfPrecisionFloat);
+        out.putShort(halfPrecisionToRawIntBits(value));
+        return this;
+    }
+
+    /**
+     * encode a floating point number with the shortest precision that preserves its value,
+     * as required by the preferred serialization of RFC 8949. NaN is always encoded as the
+     * canonical half precision quiet NaN.
+     *
+     * @param value to add
+     * @return this writer
+     */
+    public CborWriter cbor_encode_shortest_float(double value) {
+        switch (floatSize(value)) {
+            case 3:
+                ensure(3);
+                out.put((byte) Constants.CborJumpTable.CborHalfPrecisionFloat);
+                out.putShort(Double.isNaN(value) ? (short) 0x7e00 : halfPrecisionToRawIntBits((float) value));
+                return this;
+            case 5:
+                return cbor_encode_float((float) value);
+            default:
+                return cbor_encode_double(value);
+        }
+    }
+
+    public CborWriter cbor_encode_simple_value(byte value) {
+        if ((value & 0xff) <= Constants.CborSimpleValues.Break) {
+            return write_number((byte) (Constants.CborMajorTypes.SimpleTypesType << Constants.CborInternals.MajorTypeShift), value);
+        } else {
+            ensure(2);
+            out.put((byte) Constants.CborJumpTable.CborSimpleValue1ByteFollow);
+            out.put(value);
+            return this;
+        }
+    }
+
+    public CborWriter cbor_encode_int(long value) {
+        long ui = value >> 63;
+        byte majorType = (byte) (ui & 0x20);
+        ui ^= value;
+        return write_number(majorType, ui);
+    }
+
+    public CborWriter cbor_encode_uint(long ui) {
+        return write_number((byte) (Constants.CborMajorTypes.UnsignedIntegerType << Constants.CborInternals.MajorTypeShift), ui);
+    }
+
+    public CborWriter cbor_encode_negative_uint(long absolute_value) {
+        return write_number((byte) (Constants.CborMajorTypes.NegativeIntegerType << Constants.CborInternals.MajorTypeShift), absolute_value - 1);
+    }
+
+    /* size computation */
+
+    /**
+     * Returns the number of bytes of an item header, following the same width thresholds as
+     * the ones used when writing it.
+     *
+     * @param ui unsigned value carried by the header
+     * @return the size of the header in bytes
+     */
+    static int headerSize(long ui) {
+        if (ui < Constants.CborAdditionalInfo.Value8Bit && ui >= 0) {
+            return 1;
+        } else if (ui < 0x100L && ui >= 0) {
+            return 2;
+        } else if (ui < 0x10000L && ui >= 0) {
+            return 3;
+        } else if (ui < 0x100000000L && ui >= 0) {
+            return 5;
+        } else {
+            return 9;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of an array of integers, including the array header.
+     *
+     * @param array of integers
+     * @return the encoded size in bytes
+     */
+    static long arraySize(long[] array) {
+        long size = headerSize(array.length);
+        for (long value : array) {
+            size += headerSize((value >> 63) ^ value);
+        }
+        return size;
+    }
+
+    static long arraySize(int[] array) {
+        long size = headerSize(array.length);
+        for (int value : array) {
+            size += headerSize((value >> 31) ^ value);
+        }
+        return size;
+    }
+
+    static long arraySize(short[] array) {
+        long size = headerSize(array.length);
+        for (short value : array) {
+            size += headerSize((value >> 15) ^ value);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes of the UTF-8 encoding of a character sequence. Unpaired
+     * surrogates count as the single replacement character '?'.
+     *
+     * @param str character sequence
+     * @return the UTF-8 length in bytes
+     */
+    static long utf8Length(CharSequence str) {
+        int len = str.length();
+        long size = len;
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                size += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                size += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, encoded as '?'
+            } else {
+                size += 2;
+            }
+        }
+        return size;
+    }
+
+    /* raw writes */
+
+    /**
+     * Reserves the bytes of a header to be patched later.
+     *
+     * @return the position of the reserved bytes
+     */
+    int reserve_header() {
+        ensure(deferredHeaderSize);
+        int position = out.position();
+        out.position(position + deferredHeaderSize);
+        return position;
+    }
+
+    /**
+     * Writes a header over reserved bytes and moves the bytes written after the reservation
+     * back over the unused reserved bytes. The reserved bytes must not have been flushed.
+     *
+     * @param position of the reserved bytes
+     * @param shifted_mt major type
+     * @param ui header value
+     */
+    void patch_header(int position, byte shifted_mt, long ui) {
+        int end = out.position();
+        out.position(position);
+        write_number(shifted_mt, ui);
+        int from = position + deferredHeaderSize;
+        int to = out.position();
+        if (to < from) {
+            int length = end - from;
+            if (out.hasArray()) {
+                byte[] array = out.array();
+                System.arraycopy(array, out.arrayOffset() + from, array, out.arrayOffset() + to, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    out.put(to + i, out.get(from + i));
+                }
+            }
+        }
+        out.position(end - (from - to));
+    }
+
+    CborWriter write(byte b) {
+        ensure(1);
+        out.put(b);
+        return this;
+    }
+
+    CborWriter write(byte[] array, int offset, int length) {
+        ensure(length);
+        out.put(array, offset, length);
+        return this;
+    }
+
+    CborWriter write(ByteBuffer buf) {
+        ensure(buf.remaining());
+        out.put(buf);
+        return this;
+    }
+
+    CborWriter write_utf8(CharSequence str, long utf8_length) {
+        if (utf8_length > Integer.MAX_VALUE) {
+            throw new BufferOverflowException();
+        }
+        ensure((int) utf8_length);
+        int len = str.length();
+        int i = 0;
+
+        // ascii fast path, writes straight in the backing array
+        if (out.hasArray()) {
+            byte[] array = out.array();
+            int offset = out.arrayOffset();
+            int pos = offset + out.position();
+            for (; i < len; i++) {
+                char c = str.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                array[pos++] = (byte) c;
+            }
+            out.position(pos - offset);
+        }
+
+        for (; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                out.put((byte) (0xf0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return this;
+    }
+
+    CborWriter write_number(final byte shifted_mt, final long ui) {
+        if (ui < Constants.CborAdditionalInfo.Value8Bit && ui >= 0) {
+            ensure(1);
+            out.put((byte) (shifted_mt | ui & 0xff));
+        } else if (ui < 0x100L && ui >= 0) {
+            ensure(2);
+            out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value8Bit));
+            out.put((byte) ui);
+        } else if (ui < 0x10000L && ui >= 0) {
+            ensure(3);
+            out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value16Bit));
+            out.putShort((short) ui);
+        } else if (ui < 0x100000000L && ui >= 0) {
+            ensure(5);
+            out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value32Bit));
+            out.putInt((int) ui);
+        } else {
+            ensure(9);
+            out.put((byte) (shifted_mt | Constants.CborAdditionalInfo.Value64Bit));
+            out.putLong(ui);
+        }
+        return this;
+    }
+
+    private void ensure(int length) {
+        if (out.remaining() >= length) {
+            return;
+        }
+        if (!growable) {
+            throw new BufferOverflowException();
+        }
+        int capacity = out.capacity();
+        while (capacity - out.position() < length) {
+            capacity *= increasingFactor;
+        }
+        ByteBuffer newbuf = ByteBuffer.allocate(capacity);
+        out.flip();
+        newbuf.put(out);
+        out = newbuf;
+    }
+
+    /**
+     * @param value floating point number
+     * @return the number of bytes of the shortest lossless encoding of this value
+     */
+    static int floatSize(double value) {
+        if (Double.isNaN(value)) {
+            return 3;
+        }
+        float f = (float) value;
+        if (f != value) {
+            return 9;
+        }
+        double half = halfPrecisionToDouble(halfPrecisionToRawIntBits(f));
+        if (Double.doubleToRawLongBits(half) == Double.doubleToRawLongBits(value)) {
+            return 3;
+        }
+        return 5;
+    }
+
+    static double halfPrecisionToDouble(short s) {
+        int exp = (s >> 10) & 0x1f;
+        int mant = s & 0x3ff;
+
+        double val;
+        if (exp == 0) {
+            val = mant * Math.pow(2, -24);
+        } else if (exp != 31) {
+            val = (mant + 1024) * Math.pow(2, exp - 25);
+        } else if (mant != 0) {
+            val = Double.NaN;
+        } else {
+            val = Double.POSITIVE_INFINITY;
+        }
+        return ((s & 0x8000) == 0) ? val : -val;
+    }
+
+    static short halfPrecisionToRawIntBits(float value) {
+        int fbits = Float.floatToIntBits(value);
+        int sign = (fbits >>> 16) & 0x8000;
+        int val = (fbits & 0x7fffffff) + 0x1000;
+
+        // might be or become NaN/Inf
+        if (val >= 0x47800000) {
+            if ((fbits & 0x7fffffff) >= 0x47800000) { // is or must become NaN/Inf
+                if (val < 0x7f800000) {
+                    // was value but too large, make it +/-Inf
+                    return (short) (sign | 0x7c00);
+                }
+                return (short) ((sign | 0x7c00 | (fbits & 0x007fffff) >>> 13)); // keep NaN (and Inf) bits
+            }
+            return (short) (sign | 0x7bff); // unrounded not quite Inf
+        }
+        if (val >= 0x38800000) {
+            // remains normalized value
+            return (short) (sign | val - 0x38000000 >>> 13); // exp - 127 + 15
+        }
+        if (val < 0x33000000) {
+            // too small for subnormal
+            return (short) (sign); // becomes +/-0
+        }
+
+        val = (fbits & 0x7fffffff) >>> 23;
+        // add subnormal bit, round depending on cut off and div by 2^(1-(exp-127+15)) and >> 13 | exp=0
+        return (short) (sign | ((fbits & 0x7fffff | 0x800000) + (0x800000 >>> val - 102) >>> 126 - val));
+    }
+}
@@ -61,14 +61,34 @@ public interface Constants {
         int CborExpectedBase64Tag = 22;
         int CborExpectedBase16Tag = 23;
         int CborEncodedCborTag = 24;
+        int CborStringRefTag = 25;
+        int CborShareableTag = 28;
+        int CborSharedRefTag = 29;
         int CborUrlTag = 32;
         int CborBase64urlTag = 33;
         int CborBase64Tag = 34;
         int CborRegularExpressionTag = 35;
         int CborMimeMessageTag = 36;
+        int CborStringRefNamespaceTag = 256;
         int CborSignatureTag = 55799;
     }
 
+    /**
+     * RFC 8746 typed array tags are of the form 0b010_f_s_e_ll where f is set for floating
+     * point numbers, s is set for signed integers, e is set for little-endian and ll is the
+     * log2 of the element size in bytes (minus one for floating point numbers).
+     */
+    interface CborTypedArrayTags {
+        int FirstTag = 64;
+        int LastTag = 87;
+        int Uint8ClampedTag = 68;
+        int ReservedTag = 76;
+        int FloatBit = 0x10;
+        int SignedBit = 0x08;
+        int LittleEndianBit = 0x04;
+        int LengthMask = 0x03;
+    }
+
     interface CborSimpleValues {
         int FalseValue = 20;
         int TrueValue = 21;
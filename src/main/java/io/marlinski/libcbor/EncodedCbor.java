@@ -0,0 +1,72 @@
+package io.marlinski.libcbor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+
+import io.reactivex.rxjava3.core.Flowable;
+
+/**
+ * An EncodedCbor is an immutable message produced by {@link CborEncoder#freeze()}. Its bytes are
+ * encoded once and held in read-only buffers that are shared by every subscriber, so the same
+ * message can be sent to many peers without being encoded again:
+ *
+ * <pre>
+ * EncodedCbor message = CBOR.encoder()
+ *         .cbor_encode_object(event)
+ *         .freeze();
+ *
+ * for (SocketChannel peer : peers) {
+ *     message.writeTo(peer);
+ * }
+ * </pre>
+ *
+ * <p>Byte string payloads given by reference to the encoder are copied when it is frozen, only
+ * read-only ByteBuffers and file regions are still read from their source. An EncodedCbor can be
+ * safely observed, written and merged from several threads at once.
+ */
+public final class EncodedCbor {
+
+    private final List<Object> segments;
+    private final long size;
+    private final Flowable<ByteBuffer> flow;
+
+    EncodedCbor(List<Object> segments, long size) {
+        this.segments = Collections.unmodifiableList(segments);
+        this.size = size;
+        this.flow = CborEncoder.observe_segments(this.segments);
+    }
+
+    /**
+     * @return the number of encoded bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Every subscription gets its own read-only duplicates of the shared buffers.
+     *
+     * @return Flowable of the encoded buffers
+     */
+    public Flowable<ByteBuffer> observe() {
+        return flow;
+    }
+
+    /**
+     * Drains the encoded buffers into a channel, see {@link CborEncoder#writeTo(WritableByteChannel)}.
+     *
+     * @param channel to write into
+     * @return the number of bytes written
+     * @throws IOException if the channel failed
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return CborEncoder.write_segments(segments, channel);
+    }
+
+    List<Object> segments() {
+        return segments;
+    }
+}
@@ -0,0 +1,88 @@
+package io.marlinski.libcbor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * String table of a stringref namespace (tag 256). Every definite-length text or byte string
+ * of the namespace that is long enough for a reference to be shorter is appended to the table,
+ * a later occurrence of the same string can then be encoded as tag 25 with its index.
+ *
+ * <p>The encoder looks strings up by value, text strings are keyed by String and byte strings
+ * by ByteBuffer so that both never collide. The parser keeps the bytes of every entry.
+ */
+final class StringRefNamespace {
+
+    static final class Entry {
+        final int majorType;
+        final byte[] bytes;
+
+        Entry(int majorType, byte[] bytes) {
+            this.majorType = majorType;
+            this.bytes = bytes;
+        }
+    }
+
+    private final HashMap<Object, Integer> indexes = new HashMap<>();
+    private final ArrayList<Entry> entries = new ArrayList<>();
+
+    /**
+     * Minimum length of a string added to a table that already holds count strings.
+     */
+    static boolean isReferenceable(long length, long count) {
+        if (count < 24) {
+            return length >= 3;
+        } else if (count < 256) {
+            return length >= 4;
+        } else if (count < 65536) {
+            return length >= 5;
+        } else if (count < 4294967296L) {
+            return length >= 7;
+        } else {
+            return length >= 11;
+        }
+    }
+
+    /* encoder side */
+
+    Integer index(Object key) {
+        return indexes.get(key);
+    }
+
+    /**
+     * Records a string that was written in full.
+     *
+     * @param key String or ByteBuffer that must not be modified anymore
+     * @param length encoded length of the string
+     */
+    void add(Object key, long length) {
+        if (isReferenceable(length, indexes.size())) {
+            indexes.put(key, indexes.size());
+        }
+    }
+
+    /* parser side */
+
+    int size() {
+        return entries.size();
+    }
+
+    Entry get(long index) {
+        if (index < 0 || index >= entries.size()) {
+            return null;
+        }
+        return entries.get((int) index);
+    }
+
+    /**
+     * Records a string that was parsed, it is ignored if it is too short.
+     *
+     * @param majorType of the string
+     * @param bytes of the string, kept by the table
+     */
+    void add(int majorType, byte[] bytes) {
+        if (isReferenceable(bytes.length, entries.size())) {
+            entries.add(new Entry(majorType, bytes));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.marlinski.libcbor.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class for which the libcbor annotation processor generates a codec at compile time.
+ * For a class Foo, the processor generates a class FooCbor in the same package with:
+ *
+ * <ul>
+ * <li>encode(CborEncoder, Foo) and encode(CborWriter, Foo) that write the item</li>
+ * <li>parser(Foo) that returns a CborParser filling the item</li>
+ * </ul>
+ *
+ * <p>The item is encoded as a definite array of its fields in declaration order. Static and
+ * transient fields are skipped, the other fields must not be private nor final and must be of
+ * one of the following types: boolean, byte, short, int, long, float, double, String, byte[] or
+ * another class annotated with CborItem. Reference fields must not be null unless they are
+ * annotated with {@link CborNullable}.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface CborItem {
+}
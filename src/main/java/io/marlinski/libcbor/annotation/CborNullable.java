@@ -0,0 +1,15 @@
+package io.marlinski.libcbor.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a reference field of a {@link CborItem} class that may be null, in which case it is
+ * encoded as a CBOR null.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface CborNullable {
+}
@@ -3,16 +3,40 @@ package io.marlinski.libcbor;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import io.marlinski.libcbor.rxparser.RxParserException;
 import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -543,6 +567,1083 @@ public class CBOREncoderTest {
         assertEquals("0xbf6346756ef563416d7421ff", getEncodedString());
     }
 
+    @Test
+    public void encodeWithWriter() {
+        System.out.println("[+] cborencoder: testing synchronous cbor writer");
+
+        CborWriter writer = CBOR.writer(ByteBuffer.allocate(16));
+        writer.cbor_start_array(3)
+                .cbor_encode_int(1)
+                .cbor_encode_int(-1000)
+                .cbor_encode_double(1.1d);
+        assertEquals("0x830139" + "03e7" + "fb3ff199999999999a", toHexString(writer.toByteArray()));
+
+        try {
+            writer.cbor_encode_int(1000000000000L);
+            fail();
+        } catch (BufferOverflowException boe) {
+            // expected, the caller-supplied buffer is full
+        }
+
+        byte[] large = new byte[4096];
+        CborWriter growable = CBOR.writer();
+        growable.cbor_encode_byte_string(large);
+        assertEquals(4099, growable.size());
+
+        enc.cbor_encode_byte_string(large)
+                .cbor_encode_text_string("a");
+        byte[] expected = CBOR.writer()
+                .cbor_encode_byte_string(large)
+                .cbor_encode_text_string("a")
+                .toByteArray();
+        assertEquals(toHexString(expected), getEncodedString());
+    }
+
+    @Test
+    public void encodeDeferredLength() throws Exception {
+        System.out.println("[+] cborencoder: testing deferred-length containers");
+
+        // writer, patched and compacted in place
+        CborWriter writer = CBOR.writer();
+        writer.cbor_start_deferred_array()
+                .cbor_encode_int(1)
+                .cbor_start_deferred_map()
+                .cbor_encode_text_string("a")
+                .cbor_encode_int(2)
+                .cbor_stop_deferred_map(1)
+                .cbor_stop_deferred_array(2);
+        assertEquals("0x8201a1616102", toHexString(writer.toByteArray()));
+
+        writer.clear().cbor_start_deferred_array();
+        for (int i = 0; i < 300; i++) {
+            writer.cbor_encode_int(0);
+        }
+        writer.cbor_stop_deferred_array(300);
+        assertEquals(3 + 300, writer.size());
+        assertTrue(toHexString(writer.toByteArray()).startsWith("0x99012c00"));
+
+        // encoder, header still in the writer
+        enc.cbor_start_deferred_array()
+                .cbor_encode_int(1)
+                .cbor_encode_int(2)
+                .cbor_stop_deferred_array(2);
+        assertEquals(3, enc.encodedSize());
+        assertEquals("0x820102", getEncodedString());
+
+        // encoder, headers flushed by a large payload
+        byte[] large = new byte[1000];
+        enc.cbor_encode_int(0)
+                .cbor_start_deferred_array()
+                .cbor_start_deferred_map()
+                .cbor_encode_int(1)
+                .cbor_encode_byte_string(large)
+                .cbor_stop_deferred_map(1)
+                .cbor_encode_int(2)
+                .cbor_stop_deferred_array(2);
+        String expected = "0x0082a1015903e8" + toHexString(large).substring(2) + "02";
+        assertEquals((expected.length() - 2) / 2, enc.encodedSize());
+        assertEquals(expected, getEncodedString());
+
+        try {
+            enc.cbor_stop_deferred_array(0);
+            fail();
+        } catch (IllegalStateException ise) {
+            // expected, nothing is open
+        }
+
+        // the reserved header is never output while the container is open
+        CborEncoder open = CBOR.encoder().cbor_start_deferred_array().cbor_encode_int(1);
+        List<Callable<Object>> outputs = Arrays.asList(
+                open::observe,
+                open::toByteArray,
+                open::encodedSize,
+                () -> open.writeTo(Channels.newChannel(new ByteArrayOutputStream())),
+                () -> CBOR.encoder().merge(open));
+        for (Callable<Object> output : outputs) {
+            try {
+                output.call();
+                fail();
+            } catch (IllegalStateException ise) {
+                // expected
+            }
+        }
+        open.cbor_stop_deferred_array(1);
+        enc = open;
+        assertEquals("0x8101", getEncodedString());
+    }
+
+    @Test
+    public void encodeObserveBufferSize() {
+        System.out.println("[+] cborencoder: testing fixed size buffer output");
+
+        byte[] large = new byte[5000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        enc.cbor_start_array(-1);
+        for (int i = 0; i < 100; i++) {
+            enc.cbor_encode_int(i * 1000);
+        }
+        enc.cbor_encode_byte_string(large)
+                .cbor_encode_byte_string(ByteBuffer.wrap(large))
+                .cbor_encode_text_string("end")
+                .cbor_stop_array();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        enc.observe().subscribe(b -> {
+            while (b.hasRemaining()) {
+                expected.write(b.get());
+            }
+        });
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        int[] frames = {0};
+        enc.observe(2048).subscribe(b -> {
+            frames[0]++;
+            if (b.remaining() != 2048) {
+                assertEquals(expected.size() % 2048, b.remaining());
+            }
+            while (b.hasRemaining()) {
+                framed.write(b.get());
+            }
+        });
+        assertEquals((expected.size() + 2047) / 2048, frames[0]);
+        assertEquals(toHexString(expected.toByteArray()), toHexString(framed.toByteArray()));
+    }
+
+    @Test
+    public void encodeWriteToChannel() throws IOException {
+        System.out.println("[+] cborencoder: testing gathering write to a channel");
+
+        byte[] large = new byte[3000];
+        enc.cbor_start_array(2)
+                .cbor_encode_byte_string(large)
+                .cbor_encode_text_string("IETF");
+        String expected = "0x8259" + "0bb8" + toHexString(large).substring(2) + "6449455446";
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int[] gathered = {0};
+        GatheringByteChannel channel = new GatheringByteChannel() {
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                gathered[0]++;
+                long written = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    written += write(srcs[i]);
+                }
+                return written;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                int written = src.remaining();
+                while (src.hasRemaining()) {
+                    baos.write(src.get());
+                }
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        long written = enc.writeTo(channel);
+        assertEquals(baos.size(), written);
+        assertEquals(1, gathered[0]);
+        assertEquals(expected, toHexString(baos.toByteArray()));
+
+        baos.reset();
+        assertEquals(written, enc.writeTo(Channels.newChannel(baos)));
+        assertEquals(expected, toHexString(baos.toByteArray()));
+        enc = new CborEncoder();
+    }
+
+    @Test
+    public void encodeWriteToMapped() throws IOException {
+        System.out.println("[+] cborencoder: testing write to a memory mapped file");
+
+        byte[] large = new byte[3000];
+        Arrays.fill(large, (byte) 0x42);
+        File file = File.createTempFile("libcbor", ".cbor");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.write(ByteBuffer.wrap(new byte[]{0x00, 0x00, 0x00, 0x00}));
+
+            // known size, mapped at once
+            enc.cbor_start_array(2)
+                    .cbor_encode_byte_string(large)
+                    .cbor_encode_text_string("IETF");
+            CborEncoder.ByteRange range = enc.writeToMapped(channel, 4);
+            assertEquals(4, range.position);
+            assertEquals(enc.encodedSize(), range.length);
+            String expected = getEncodedString();
+
+            // unknown size, grown by small increments then truncated
+            enc.cbor_encode_array(Flowable.just(large), CborEncoder::cbor_encode_byte_string);
+            range = enc.writeToMapped(channel, 4 + range.length, 1000);
+            assertEquals(1 + 3 + 3000 + 1, range.length);
+            expected += getEncodedString().substring(2);
+            assertEquals(4 + 3009 + 3005, channel.size());
+
+            byte[] content = new byte[(int) channel.size() - 4];
+            channel.read(ByteBuffer.wrap(content), 4);
+            assertEquals(expected, toHexString(content));
+        }
+    }
+
+    @Test
+    public void encodeFileRegion() throws IOException {
+        System.out.println("[+] cborencoder: testing byte string from a file region");
+
+        byte[] content = new byte[200000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File source = File.createTempFile("libcbor", ".bin");
+        source.deleteOnExit();
+        File target = File.createTempFile("libcbor", ".cbor");
+        target.deleteOnExit();
+        try (RandomAccessFile in = new RandomAccessFile(source, "rw");
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            in.getChannel().write(ByteBuffer.wrap(content));
+            byte[] payload = Arrays.copyOfRange(content, 10, 100010);
+            String expected = toHexString(CBOR.writer()
+                    .cbor_start_array(2)
+                    .cbor_encode_byte_string(payload)
+                    .cbor_encode_text_string("a")
+                    .toByteArray());
+
+            enc.cbor_start_array(2)
+                    .cbor_encode_byte_string(in.getChannel(), 10, 100000)
+                    .cbor_encode_text_string("a");
+            assertEquals((expected.length() - 2) / 2, enc.encodedSize());
+
+            // transferred to a file channel
+            long written = enc.writeTo(out.getChannel());
+            assertEquals(enc.encodedSize(), written);
+            byte[] transferred = new byte[(int) written];
+            out.getChannel().read(ByteBuffer.wrap(transferred), 0);
+            assertEquals(expected, toHexString(transferred));
+
+            // transferred to a plain channel
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            assertEquals(written, enc.writeTo(Channels.newChannel(baos)));
+            assertEquals(expected, toHexString(baos.toByteArray()));
+
+            // read by chunks
+            assertEquals(expected, getEncodedString());
+
+            // a region must have a definite length
+            try {
+                enc.cbor_encode_byte_string(in.getChannel(), 10, -1);
+                fail();
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+            try {
+                enc.cbor_encode_byte_string(in.getChannel(), -1, 10);
+                fail();
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+            assertEquals(0, enc.encodedSize());
+        }
+    }
+
+    @Test
+    public void encodeBufferRing() {
+        System.out.println("[+] cborencoder: testing observe with a ring of released buffers");
+
+        enc.cbor_start_array(20);
+        for (int i = 0; i < 20; i++) {
+            enc.cbor_encode_text_string("item-" + i);
+        }
+        String expected = toHexString(enc.toByteArray());
+
+        // buffers cross an asynchronous boundary and are released once consumed
+        CborBufferRing ring = new CborBufferRing(3, 16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        enc.observe(ring)
+                .observeOn(Schedulers.single())
+                .doOnNext(buf -> {
+                    assertTrue(ring.available() < 3);
+                    out.write(buf.array(), buf.position(), buf.remaining());
+                    ring.release(buf);
+                })
+                .test()
+                .awaitDone(5, TimeUnit.SECONDS)
+                .assertComplete();
+        assertEquals(expected, toHexString(out.toByteArray()));
+        assertEquals(3, ring.available());
+
+        try {
+            ring.release(ByteBuffer.allocate(16));
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        enc = new CborEncoder();
+    }
+
+    @Test
+    public void encodeDatagrams() throws Exception {
+        System.out.println("[+] cborencoder: testing datagram packing of top-level items");
+
+        List<CborEncoder> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(CBOR.encoder().cbor_encode_text_string("reading-" + i)); // 10 bytes
+        }
+        List<ByteBuffer> datagrams = CborEncoder.observeDatagrams(Flowable.fromIterable(items), 32)
+                .toList().blockingGet();
+        assertEquals(4, datagrams.size());
+
+        // every datagram holds whole items and parses on its own
+        List<String> parsed = new ArrayList<>();
+        for (ByteBuffer datagram : datagrams) {
+            assertTrue(datagram.remaining() <= 32);
+            CborParser parser = CBOR.parser().cbor_parse_text_string_full((__, str) -> parsed.add(str));
+            while (datagram.hasRemaining()) {
+                assertTrue(parser.read(datagram));
+                parser.reset();
+            }
+        }
+        assertEquals(10, parsed.size());
+        assertEquals("reading-9", parsed.get(9));
+
+        // oversized items fail the flow or are reported
+        items.add(3, CBOR.encoder().cbor_encode_byte_string(new byte[40]));
+        CborEncoder.observeDatagrams(Flowable.fromIterable(items), 32)
+                .test()
+                .assertError(CBOR.CborItemTooLarge.class);
+        List<Long> oversized = new ArrayList<>();
+        assertEquals(4, CborEncoder.observeDatagrams(Flowable.fromIterable(items), 32, (item, size) -> oversized.add(size))
+                .count().blockingGet().longValue());
+        assertEquals(Collections.singletonList(42L), oversized);
+    }
+
+    @Test
+    public void encodeFreeze() throws IOException {
+        System.out.println("[+] cborencoder: testing frozen messages encoded once");
+
+        int[] encoded = {0};
+        enc.cbor_start_array(3)
+                .cbor_encode_text_string("event")
+                .cbor_encode_array(Flowable.just(1L, 2L), (e, v) -> {
+                    encoded[0]++;
+                    e.cbor_encode_int(v);
+                })
+                .cbor_encode_byte_string(new byte[1000]);
+        EncodedCbor frozen = enc.freeze();
+        assertEquals(2, encoded[0]);
+        String expected = toHexString(CBOR.writer()
+                .cbor_start_array(3)
+                .cbor_encode_text_string("event")
+                .cbor_start_array(-1)
+                .cbor_encode_int(1)
+                .cbor_encode_int(2)
+                .cbor_stop_array()
+                .cbor_encode_byte_string(new byte[1000])
+                .toByteArray());
+        assertEquals((expected.length() - 2) / 2, frozen.size());
+
+        // reusing the encoder does not alter the frozen message
+        enc.reset().cbor_encode_text_string("overwritten");
+        enc = new CborEncoder();
+
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(frozen.size(), frozen.writeTo(Channels.newChannel(out)));
+            assertEquals(expected, toHexString(out.toByteArray()));
+        }
+        enc.merge(frozen);
+        assertEquals(expected, getEncodedString());
+        enc.cbor_start_array(2).merge(frozen).merge(frozen);
+        assertEquals("0x82" + expected.substring(2) + expected.substring(2), getEncodedString());
+        assertEquals(2, encoded[0]);
+
+        // large payloads are copied, the caller can reuse its array
+        byte[] payload = new byte[1000];
+        EncodedCbor copied = CBOR.encoder().cbor_encode_byte_string(payload).freeze();
+        String before = toHexString(CBOR.writer().cbor_encode_byte_string(payload).toByteArray());
+        Arrays.fill(payload, (byte) 0x42);
+        enc.merge(copied);
+        assertEquals(before, getEncodedString());
+    }
+
+    @Test
+    public void encodeFragmentCache() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing cached fragments of immutable objects");
+
+        Map<Object, Object> descriptor = new LinkedHashMap<>();
+        descriptor.put("host", "10.0.0.1");
+        descriptor.put("port", 4556);
+        List<Object> message = Arrays.asList("peers", descriptor, Collections.singletonMap("via", descriptor));
+        enc.cbor_encode_object(message);
+        String expected = getEncodedString();
+
+        CborFragmentCache cache = new CborFragmentCache(2);
+        EncodedCbor fragment = cache.register(descriptor);
+        assertEquals(1, cache.size());
+
+        // the cached bytes are spliced, even after the object changed
+        descriptor.put("port", 1);
+        enc.fragments(cache).cbor_encode_object(message);
+        assertEquals(expected, getEncodedString());
+
+        // a deterministic encoder does not use a non deterministic cache
+        enc = CBOR.encoder().deterministic().fragments(cache);
+        enc.cbor_encode_object(descriptor);
+        assertEquals("0xa264686f73746831302e302e302e3164706f727401", getEncodedString());
+
+        // fragments by user key, least recently used are evicted
+        int[] encoded = {0};
+        CborFragmentCache.FragmentCallback peer = e -> {
+            encoded[0]++;
+            e.cbor_encode_text_string("peer");
+        };
+        assertEquals(fragment, cache.register(descriptor));
+        cache.get("a", peer);
+        cache.get("a", peer);
+        assertEquals(1, encoded[0]);
+        cache.get("b", peer);
+        assertEquals(2, cache.size());
+        assertEquals(null, cache.lookup(descriptor));
+        enc.merge(cache.get("a", peer));
+        assertEquals("0x6470656572", getEncodedString());
+        assertEquals(2, encoded[0]);
+    }
+
+    @Test
+    public void encodeSharedValues() throws Exception {
+        System.out.println("[+] cborencoder: testing value sharing of repeated references");
+
+        List<Object> route = Arrays.asList("a", "b");
+        Map<Object, Object> table = new LinkedHashMap<>();
+        table.put("r1", route);
+        table.put("r2", route);
+        table.put("r3", Arrays.asList("a", "b"));
+
+        enc.sharedValues().cbor_encode_map(table);
+        // route is tagged 28 once then referenced as 29(0), the equal but distinct list is not shared
+        assertEquals("0xa3627231d81c8261616162627232d81d006272338261616162", getEncodedString());
+
+        enc.sharedValues().cbor_encode_object(Arrays.asList(route, Collections.singletonMap("via", route)));
+        assertEquals("0x82d81c8261616162a163766961d81d00", getEncodedString());
+
+        // the parser resolves references to the shared instance
+        CBOR.DataItem[] parsed = {null};
+        CborParser parser = CBOR.parser().cbor_parse_generic((__, item) -> parsed[0] = item);
+        enc.sharedValues().cbor_encode_map(table);
+        assertTrue(parser.read(ByteBuffer.wrap(enc.toByteArray())));
+        Map<String, CBOR.DataItem> routes = new HashMap<>();
+        for (Object e : ((CBOR.MapItem) parsed[0]).value().entrySet()) {
+            Map.Entry<CBOR.DataItem, CBOR.DataItem> entry = (Map.Entry<CBOR.DataItem, CBOR.DataItem>) e;
+            routes.put((String) entry.getKey().item, entry.getValue());
+        }
+        assertTrue(CBOR.ArrayItem.ofType(routes.get("r1")));
+        assertTrue(routes.get("r1") == routes.get("r2"));
+        assertTrue(routes.get("r1") != routes.get("r3"));
+
+        // shared values are numbered over the whole top-level item
+        List<Object> first = Arrays.asList("x");
+        List<Object> second = Arrays.asList("y");
+        enc = new CborEncoder();
+        enc.sharedValues()
+                .cbor_start_array(2)
+                .cbor_encode_collection(Arrays.asList(first, first))
+                .cbor_encode_collection(Arrays.asList(second, second));
+        byte[] roots = enc.toByteArray();
+        assertEquals("0x8282d81c816178d81d0082d81c816179d81d01", toHexString(roots));
+        assertTrue(CBOR.parser().cbor_parse_generic((__, item) -> parsed[0] = item).read(ByteBuffer.wrap(roots)));
+        List<CBOR.DataItem> halves = new ArrayList<>();
+        for (Object half : ((CBOR.ArrayItem) parsed[0]).value()) {
+            for (Object element : ((CBOR.ArrayItem) half).value()) {
+                halves.add((CBOR.DataItem) element);
+            }
+        }
+        assertTrue(halves.get(0) == halves.get(1));
+        assertTrue(halves.get(2) == halves.get(3));
+        assertEquals("y", ((CBOR.DataItem) ((CBOR.ArrayItem) halves.get(3)).value().iterator().next()).item);
+
+        // and start again from 0 in the next top-level item
+        enc = new CborEncoder();
+        enc.sharedValues()
+                .cbor_encode_collection(Arrays.asList(first, first))
+                .cbor_encode_collection(Arrays.asList(second, second));
+        assertEquals("0x82d81c816178d81d0082d81c816179d81d00", getEncodedString());
+
+        // a reference to an unknown value is rejected
+        try {
+            CBOR.parser().cbor_parse_generic((__, item) -> {
+            }).read(ByteBuffer.wrap(new byte[]{(byte) 0xd8, 0x1d, 0x00}));
+            fail();
+        } catch (RxParserException rpe) {
+            // expected
+        }
+        enc = new CborEncoder();
+    }
+
+    @Test
+    public void encodeStringRefs() throws Exception {
+        System.out.println("[+] cborencoder: testing stringref namespaces of repeated strings");
+
+        // "hello" is referenced as 25(0), "hi" is too short to be worth a reference
+        enc.stringRefs().cbor_encode_object(Arrays.asList("hello", "hello", "hi", "hi"));
+        assertEquals("0xd90100846568656c6c6fd81900626869626869", getEncodedString());
+
+        List<Object> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<Object, Object> record = new LinkedHashMap<>();
+            record.put("timestamp", i);
+            record.put("temperature", 20);
+            records.add(record);
+        }
+        int plain = CBOR.encoder().cbor_encode_object(records).toByteArray().length;
+        byte[] encoded = enc.stringRefs().cbor_encode_object(records).toByteArray();
+        assertTrue(encoded.length < plain / 2);
+
+        // the generic parser resolves the references
+        CBOR.DataItem[] parsed = {null};
+        assertTrue(CBOR.parser().cbor_parse_generic((__, item) -> parsed[0] = item).read(ByteBuffer.wrap(encoded)));
+        assertEquals(10, ((CBOR.ArrayItem) parsed[0]).value().size());
+        for (Object record : ((CBOR.ArrayItem) parsed[0]).value()) {
+            List<String> keys = new ArrayList<>();
+            for (Object key : ((CBOR.MapItem) record).value().keySet()) {
+                keys.add((String) ((CBOR.DataItem) key).item);
+            }
+            assertEquals(Arrays.asList("timestamp", "temperature"), keys);
+        }
+
+        // and so does a typed parser inside an explicit namespace
+        enc = new CborEncoder();
+        enc.cbor_start_stringref_namespace()
+                .cbor_start_array(2)
+                .cbor_encode_text_string("sensor-1")
+                .cbor_encode_text_string("sensor-1")
+                .cbor_stop_stringref_namespace();
+        List<String> names = new ArrayList<>();
+        CborParser parser = CBOR.parser()
+                .cbor_open_stringref_namespace()
+                .cbor_open_array(2)
+                .cbor_parse_text_string_full((__, str) -> names.add(str))
+                .cbor_parse_text_string_full((__, str) -> names.add(str))
+                .cbor_close_stringref_namespace();
+        assertTrue(parser.read(ByteBuffer.wrap(enc.toByteArray())));
+        assertEquals(Arrays.asList("sensor-1", "sensor-1"), names);
+
+        // other tags of a referenced string are still reported, before or after tag 25
+        enc = new CborEncoder();
+        enc.cbor_start_stringref_namespace()
+                .cbor_start_array(2)
+                .cbor_encode_tag(32)
+                .cbor_encode_text_string("sensor-1")
+                .cbor_encode_tag(32)
+                .cbor_encode_tag(Constants.CborKnownTags.CborStringRefTag)
+                .cbor_encode_tag(33)
+                .cbor_encode_int(0)
+                .cbor_stop_stringref_namespace();
+        List<Long> tags = new ArrayList<>();
+        names.clear();
+        parser = CBOR.parser()
+                .cbor_open_stringref_namespace()
+                .cbor_open_array(2)
+                .cbor_parse_text_string_full((__, t, size) -> tags.addAll(t), (__, str) -> names.add(str))
+                .cbor_parse_text_string_full((__, t, size) -> tags.addAll(t), (__, str) -> names.add(str))
+                .cbor_close_stringref_namespace();
+        assertTrue(parser.read(ByteBuffer.wrap(enc.toByteArray())));
+        assertEquals(Arrays.asList("sensor-1", "sensor-1"), names);
+        assertEquals(Arrays.asList(32L, 32L, 33L), tags);
+
+        // chunks of an indefinite string are neither referenced nor recorded
+        enc = new CborEncoder();
+        enc.cbor_start_stringref_namespace()
+                .cbor_start_array(3)
+                .cbor_encode_text_string("hello")
+                .cbor_start_text_string(-1)
+                .cbor_put_text_string_chunk("hello")
+                .cbor_put_text_string_chunk("world")
+                .cbor_stop_text_string()
+                .cbor_encode_text_string("world")
+                .cbor_stop_stringref_namespace();
+        byte[] chunked = enc.toByteArray();
+        assertEquals("0xd90100836568656c6c6f7f6568656c6c6f65776f726c64ff65776f726c64", toHexString(chunked));
+        assertTrue(CBOR.parser().cbor_parse_generic((__, item) -> parsed[0] = item).read(ByteBuffer.wrap(chunked)));
+        List<Object> strings = new ArrayList<>();
+        for (Object item : ((CBOR.ArrayItem) parsed[0]).value()) {
+            strings.add(((CBOR.DataItem) item).item);
+        }
+        assertEquals(Arrays.asList("hello", "helloworld", "world"), strings);
+
+        // strings that cannot be tracked are rejected inside a namespace
+        try {
+            CBOR.encoder().cbor_start_stringref_namespace().merge(CBOR.encoder().cbor_encode_text_string("hello"));
+            fail();
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        enc = new CborEncoder();
+    }
+
+    @Test
+    public void encodeDeflate() throws Exception {
+        System.out.println("[+] cborencoder: testing deflate compression of encoded items");
+
+        List<CborEncoder> units = new ArrayList<>();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            CborEncoder unit = CBOR.encoder()
+                    .cbor_start_array(3)
+                    .cbor_encode_int(i)
+                    .cbor_encode_text_string("sensor-reading")
+                    .cbor_encode_byte_string(new byte[100]);
+            plain.write(unit.toByteArray());
+            units.add(unit);
+        }
+
+        CborDeflater deflater = new CborDeflater();
+        List<byte[]> flushed = new ArrayList<>();
+        for (CborEncoder unit : units) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            unit.observe(deflater).subscribe(b -> compressed.write(b.array(), b.arrayOffset() + b.position(), b.remaining()));
+            flushed.add(compressed.toByteArray());
+        }
+        deflater.end();
+        int total = 0;
+        for (byte[] b : flushed) {
+            total += b.length;
+        }
+        assertTrue(total < plain.size() / 4);
+
+        // every unit is parsed as soon as its flushed bytes are inflated
+        List<Long> ids = new ArrayList<>();
+        CborParser parser = CBOR.parser().cbor_open_array(3)
+                .cbor_parse_int((__, ___, v) -> ids.add(v))
+                .cbor_parse_text_string_full((__, s) -> assertEquals("sensor-reading", s))
+                .cbor_parse_byte_string_unsafe((__, ___, b) -> assertEquals(100, b.remaining()));
+        CborInflater inflater = new CborInflater();
+        for (int i = 0; i < flushed.size(); i++) {
+            assertEquals(1, inflater.read(parser, ByteBuffer.wrap(flushed.get(i))));
+            assertEquals(i + 1, ids.size());
+        }
+        inflater.end();
+
+        // the compressed stream inflates back to the original bytes
+        CborInflater stream = new CborInflater();
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        stream.inflate(Observable.fromIterable(flushed).map(ByteBuffer::wrap))
+                .subscribe(b -> inflated.write(b.array(), b.arrayOffset() + b.position(), b.remaining()));
+        stream.end();
+        assertEquals(toHexString(plain.toByteArray()), toHexString(inflated.toByteArray()));
+    }
+
+    @Test
+    public void encodeEncodedSize() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing encoded size computation");
+
+        Map<Object, Object> m = new HashMap<>();
+        m.put("a", 1.5d);
+        m.put(1000, new long[]{1, -100, 1000000, 1000000000000L});
+        m.put("b", Arrays.asList(true, null, 1.0f, "IETF"));
+        m.put(-25, new byte[600]);
+
+        long size = CborEncoder.encodedSize(m);
+        enc.cbor_encode_object(m);
+        assertEquals(size, enc.encodedSize());
+        assertEquals(size, (getEncodedString().length() - 2) / 2);
+
+        enc.cbor_start_array(2)
+                .cbor_encode_byte_string(new byte[4000])
+                .merge(CBOR.encoder().cbor_encode_half_float(1.0f));
+        assertEquals(1 + 4003 + 3, enc.encodedSize());
+        assertEquals(enc.encodedSize(), (getEncodedString().length() - 2) / 2);
+
+        enc.cbor_encode_byte_string(Flowable.just(ByteBuffer.allocate(10)));
+        assertEquals(-1, enc.encodedSize());
+        enc = new CborEncoder();
+    }
+
+    @Test
+    public void encodeTemplate() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing precompiled templates");
+
+        CborTemplate template = CBOR.template()
+                .constant(CBOR.encoder()
+                        .cbor_start_map(2)
+                        .cbor_encode_text_string("a"))
+                .slot()
+                .constant(CBOR.encoder()
+                        .cbor_encode_text_string("b")
+                        .cbor_encode_tag(1))
+                .slot()
+                .build();
+        assertEquals(2, template.slots());
+        assertEquals(6, template.constantSize());
+
+        enc = template.fill(1, 1363896240);
+        assertEquals("0xa26161016162c11a514b67b0", getEncodedString());
+
+        enc = template.fill((e, slot) -> e.cbor_encode_int(slot));
+        assertEquals("0xa26161006162c101", getEncodedString());
+
+        CborWriter writer = template.writeTo(CBOR.writer(), (w, slot) -> w.cbor_encode_boolean(slot == 0));
+        assertEquals("0xa26161f56162c1f4", toHexString(writer.toByteArray()));
+    }
+
+    @Test
+    public void encodeTextStringCharSequence() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing encoding utf-8 text from char sequences");
+
+        enc.cbor_encode_text_string(new StringBuilder("IETF"));
+        assertEquals("0x6449455446", getEncodedString());
+
+        enc.cbor_encode_text_string(CharBuffer.wrap("a\u00fc\u6c34\ud800\udd51"));
+        assertEquals("0x6a61c3bce6b0b4f0908591", getEncodedString());
+
+        enc.cbor_encode_object(new StringBuilder("\u00fc"));
+        assertEquals("0x62c3bc", getEncodedString());
+
+        // unpaired surrogate
+        enc.cbor_encode_text_string("a\ud800");
+        assertEquals("0x62613f", getEncodedString());
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append(i % 2 == 0 ? 'a' : '\u00e9');
+        }
+        String str = sb.toString();
+        assertEquals(CborEncoder.encodedSize(str), 3 + 450);
+        assertEquals(toHexString(CBOR.writer().cbor_encode_text_string(sb).toByteArray()),
+                "0x7901c2" + toHexString(str.getBytes(StandardCharsets.UTF_8)).substring(2));
+    }
+
+    @Test
+    public void encodePrimitiveArrays() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing encoding primitive arrays");
+
+        Object[] arrays = {
+                new int[]{1, -100, 1000000},
+                new long[]{1, -1000, 1000000000000L},
+                new short[]{24, -25},
+                new double[]{1.1d, -4.1d},
+                new float[]{100000.0f},
+                new boolean[]{true, false},
+        };
+        String[] expected = {
+                "0x830138631a000f4240",
+                "0x83013903e71b000000e8d4a51000",
+                "0x8218183818",
+                "0x82fb3ff199999999999afbc010666666666666",
+                "0x81fa47c35000",
+                "0x82f5f4",
+        };
+        for (int i = 0; i < arrays.length; i++) {
+            long size = CborEncoder.encodedSize(arrays[i]);
+            enc.cbor_encode_object(arrays[i]);
+            assertEquals(size, enc.encodedSize());
+            assertEquals(expected[i], getEncodedString());
+        }
+
+        enc.cbor_encode_object(new byte[]{0x01, 0x02, 0x03, 0x04});
+        assertEquals("0x4401020304", getEncodedString());
+
+        enc.cbor_encode_object(new Integer[]{1, 2, 3});
+        assertEquals("0x83010203", getEncodedString());
+    }
+
+    @Test
+    public void encodeManySegments() {
+        System.out.println("[+] cborencoder: testing encoding with a large number of segments");
+
+        // every byte string source and every merge adds a segment
+        int n = 50000;
+        CborEncoder part = CBOR.encoder().cbor_encode_int(1);
+        for (int i = 0; i < n; i++) {
+            enc.cbor_encode_byte_string(1, Flowable.just(ByteBuffer.wrap(new byte[]{0x01})));
+            enc.merge(part);
+        }
+        assertEquals(3L * n, enc.encodedSize());
+
+        long[] count = {0, 0};
+        enc.observe().blockingSubscribe(b -> {
+            count[0] += b.remaining();
+            count[1]++;
+        });
+        assertEquals(3L * n, count[0]);
+
+        // the encoder can be observed again
+        assertEquals((long) count[1], (long) enc.observe().count().blockingGet());
+    }
+
+    @Test
+    public void encodeParallel() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing parallel encoding of large collections");
+
+        List<Object> list = new ArrayList<>();
+        Map<Object, Object> map = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            list.add(i % 3 == 0 ? "item" + i : i * 1000L);
+            map.put("key" + i, Arrays.asList(i, 1.5d));
+        }
+        Object[] array = list.toArray();
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (Object o : new Object[]{list, map, array}) {
+            enc.cbor_encode_object(o);
+            String sequential = getEncodedString();
+            enc.parallel(pool).cbor_encode_object(o);
+            assertEquals(sequential, getEncodedString());
+        }
+
+        // deterministic maps keep their order
+        enc.deterministic().cbor_encode_map(map);
+        String sequential = getEncodedString();
+        enc.deterministic().parallel(pool).cbor_encode_map(map);
+        assertEquals(sequential, getEncodedString());
+
+        // errors from the workers are rethrown
+        list.add(new Object());
+        try {
+            enc.parallel(pool).cbor_encode_collection(list);
+            fail();
+        } catch (CBOR.CborEncodingUnknown ceu) {
+            // expected
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void encodeLazyArray() {
+        System.out.println("[+] cborencoder: testing lazy encoding of array elements");
+
+        enc.cbor_encode_array(Arrays.asList(1L, 2L, 3L).iterator(), CborEncoder::cbor_encode_int);
+        assertEquals("0x9f010203ff", getEncodedString());
+
+        enc.cbor_encode_array(Stream.of("a", "b"), CborEncoder::cbor_encode_text_string);
+        assertEquals("0x9f61616162ff", getEncodedString());
+
+        enc.cbor_encode_array(3, Flowable.just(1L, 2L, 3L), CborEncoder::cbor_encode_int);
+        assertEquals("0x83010203", getEncodedString());
+
+        // wrong number of elements
+        enc.cbor_encode_array(4, Flowable.just(1L, 2L, 3L), CborEncoder::cbor_encode_int);
+        enc.observe().test().awaitDone(1, TimeUnit.SECONDS).assertError(IllegalStateException.class);
+        enc = CBOR.encoder();
+
+        // a definite array cannot have a negative length
+        try {
+            enc.cbor_encode_array(-1, Flowable.just(1L), CborEncoder::cbor_encode_int);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        assertEquals(0, enc.encodedSize());
+
+        // elements are only pulled on demand
+        long[] pulled = {0};
+        Iterator<Long> endless = new Iterator<Long>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Long next() {
+                return pulled[0]++;
+            }
+        };
+        enc.cbor_encode_array(endless, CborEncoder::cbor_encode_int);
+        assertEquals(5, (long) enc.observe().take(5).count().blockingGet());
+        assertTrue(pulled[0] < 10);
+    }
+
+    @Test
+    public void encodeResetAndPool() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing encoder reset and pooling");
+
+        byte[] large = new byte[1000];
+        CborEncoder reused = CBOR.encoder();
+        for (int i = 0; i < 3; i++) {
+            reused.cbor_start_array(2)
+                    .cbor_encode_int(i)
+                    .cbor_encode_byte_string(large);
+            enc = reused;
+            String encoded = getEncodedString();
+            assertEquals("0x820" + i + "5903e8" + toHexString(large).substring(2), encoded);
+            reused.reset();
+            assertEquals(0, reused.encodedSize());
+        }
+
+        // a merged message is not overwritten when its encoder is reused
+        CborEncoder merged = CBOR.encoder();
+        reused.cbor_encode_int(1).cbor_encode_text_string("abc");
+        merged.cbor_start_array(2).merge(reused);
+        reused.reset().cbor_encode_int(23).cbor_encode_text_string("zzz");
+        enc = merged;
+        assertEquals("0x820163616263", getEncodedString());
+        reused.reset();
+
+        // modes are set back to default
+        reused.preferredFloats().reset().cbor_encode_double(1.5d);
+        enc = reused;
+        assertEquals("0xfb3ff8000000000000", getEncodedString());
+
+        CBOR.setEncoderPooling(true);
+        try {
+            CborEncoder first = CBOR.encoder();
+            first.cbor_encode_int(1);
+            first.release();
+            first.release();
+            CborEncoder second = CBOR.encoder();
+            assertTrue(first == second);
+            assertEquals(0, second.encodedSize());
+            assertTrue(CBOR.encoder() != second);
+
+            // a flow taken before the release still emits its own message
+            CborEncoder observed = CBOR.encoder().cbor_encode_text_string("first message");
+            Flowable<ByteBuffer> flow = observed.observe();
+            observed.release();
+            CborEncoder next = CBOR.encoder();
+            assertTrue(next == observed);
+            next.cbor_encode_int(7);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            flow.subscribe(b -> {
+                while (b.hasRemaining()) {
+                    out.write(b.get());
+                }
+            });
+            assertEquals("0x6d6669727374206d657373616765", toHexString(out.toByteArray()));
+            enc = next;
+            assertEquals("0x07", getEncodedString());
+        } finally {
+            CBOR.setEncoderPooling(false);
+        }
+    }
+
+    @Test
+    public void encodeDeterministic() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing deterministic encoding");
+
+        // key order example from RFC 8949 section 4.2.1
+        Map<Object, Object> m = new HashMap<>();
+        m.put(false, 0);
+        m.put(Collections.singletonList(-1), 0);
+        m.put(Collections.singletonList(100), 0);
+        m.put("aa", 0);
+        m.put("z", 0);
+        m.put(-1, 0);
+        m.put(100, 0);
+        m.put(10, 0);
+        String expected = "0xa80a00186400200061" + "7a0062616100811864008120" + "00f400";
+        enc.deterministic().cbor_encode_map(m);
+        assertEquals(expected, getEncodedString());
+
+        // cached key order, whatever the iteration order of the map
+        CborKeyOrder order = new CborKeyOrder(m.keySet());
+        Map<Object, Object> reversed = new LinkedHashMap<>();
+        reversed.put(10, 0);
+        reversed.put(100, 0);
+        reversed.put(-1, 0);
+        reversed.put("z", 0);
+        reversed.put("aa", 0);
+        reversed.put(Collections.singletonList(100), 0);
+        reversed.put(Collections.singletonList(-1), 0);
+        reversed.put(false, 0);
+        assertTrue(order.matches(reversed));
+        enc.cbor_encode_map(reversed, order);
+        assertEquals(expected, getEncodedString());
+
+        reversed.remove(10);
+        try {
+            enc.cbor_encode_map(reversed, order);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+
+        // keys with the same encoding would be duplicates
+        Map<Object, Object> duplicates = new HashMap<>();
+        duplicates.put(1, "int");
+        duplicates.put(1L, "long");
+        try {
+            CBOR.encoder().deterministic().cbor_encode_map(duplicates);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+
+        // shortest floating point numbers
+        Object[] floats = {1.5d, 100000.0d, 1.1d, Double.NaN, new float[]{-0.0f, 65504.0f}};
+        String[] expected_floats = {"0xf93e00", "0xfa47c35000", "0xfb3ff199999999999a", "0xf97e00", "0x82f98000f97bff"};
+        for (int i = 0; i < floats.length; i++) {
+            enc = CBOR.encoder().deterministic();
+            enc.cbor_encode_object(floats[i]);
+            assertEquals(expected_floats[i], getEncodedString());
+        }
+    }
+
+    @Test
+    public void encodePreferredFloats() throws CBOR.CborEncodingUnknown {
+        System.out.println("[+] cborencoder: testing preferred serialization of floating point numbers");
+
+        // appendix A of RFC 8949 with preferred serialization
+        Object[] floats = {
+                0.0d, -0.0d, 1.0d, 1.1d, 1.5d, 65504.0d, 100000.0d, 3.4028234663852886e+38d,
+                1.0e+300d, 5.960464477539063e-8d, 0.00006103515625d, -4.0d, -4.1d,
+                Double.POSITIVE_INFINITY, Double.NaN, Double.NEGATIVE_INFINITY, 1.5f,
+                new double[]{1.0d, 1.1d}};
+        String[] expected = {
+                "0xf90000", "0xf98000", "0xf93c00", "0xfb3ff199999999999a", "0xf93e00", "0xf97bff",
+                "0xfa47c35000", "0xfa7f7fffff", "0xfb7e37e43c8800759c", "0xf90001", "0xf90400",
+                "0xf9c400", "0xfbc010666666666666", "0xf97c00", "0xf97e00", "0xf9fc00", "0xf93e00",
+                "0x82f93c00fb3ff199999999999a"};
+        for (int i = 0; i < floats.length; i++) {
+            enc = CBOR.encoder().preferredFloats();
+            enc.cbor_encode_object(floats[i]);
+            assertEquals(CborEncoder.encodedSize(floats[i], true), enc.encodedSize());
+            assertEquals(expected[i], getEncodedString());
+        }
+
+        // explicit calls are shortened too
+        enc = CBOR.encoder().preferredFloats();
+        enc.cbor_encode_double(2.0d).cbor_encode_float(0.5f);
+        assertEquals("0xf94000f93800", getEncodedString());
+
+        enc.cbor_encode_shortest_float(2.0d).cbor_encode_double(2.0d);
+        assertEquals("0xf94000fb4000000000000000", getEncodedString());
+    }
+
+    @Test
+    public void encodeTypedArrays() {
+        System.out.println("[+] cborencoder: testing encoding RFC 8746 typed arrays");
+
+        enc.cbor_encode_typed_array(new int[]{1, -1}, ByteOrder.BIG_ENDIAN);
+        assertEquals("0xd84a4800000001ffffffff", getEncodedString());
+
+        enc.cbor_encode_typed_array(new int[]{1, -1}, ByteOrder.LITTLE_ENDIAN);
+        assertEquals("0xd84e4801000000ffffffff", getEncodedString());
+
+        enc.cbor_encode_typed_array(new short[]{256}, ByteOrder.BIG_ENDIAN);
+        assertEquals("0xd849420100", getEncodedString());
+
+        enc.cbor_encode_typed_array(new double[]{1.5d}, ByteOrder.BIG_ENDIAN);
+        assertEquals("0xd852483ff8000000000000", getEncodedString());
+
+        enc.cbor_encode_typed_array(new float[]{1.5f}, ByteOrder.LITTLE_ENDIAN);
+        assertEquals("0xd855440000c03f", getEncodedString());
+    }
+
     /*
     @Test
     public void encodeCustomItem() {
@@ -587,9 +1688,13 @@ public class CBOREncoderTest {
         enc = new CborEncoder();
 
         // return the string
+        return toHexString(baos.toByteArray());
+    }
+
+    private String toHexString(byte[] array) {
         Formatter formatter = new Formatter();
         formatter.format("0x");
-        for (byte b : baos.toByteArray()) {
+        for (byte b : array) {
             formatter.format("%02x", b);
         }
         return (formatter.toString());
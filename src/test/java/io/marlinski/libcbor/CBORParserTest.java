@@ -3,6 +3,9 @@ package io.marlinski.libcbor;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -14,6 +17,8 @@ import io.marlinski.libcbor.CBOR.MapItem;
 import io.marlinski.libcbor.CBOR.DataItem;
 import io.marlinski.libcbor.CBOR.IntegerItem;
 import io.marlinski.libcbor.CBOR.TextStringItem;
+import io.marlinski.libcbor.annotation.CborItem;
+import io.marlinski.libcbor.annotation.CborNullable;
 import io.marlinski.libcbor.rxparser.RxParserException;
 import io.reactivex.rxjava3.core.Flowable;
 
@@ -793,6 +798,63 @@ public class CBORParserTest {
     }
 
 
+    @Test
+    public void parseTypedArrays() {
+        System.out.println("[+] cborparser: testing parsing RFC 8746 typed arrays");
+
+        try {
+            long[] longs = {1, -1, Long.MAX_VALUE};
+            double[] doubles = {1.5d, -0.25d};
+            ByteBuffer encoded = ByteBuffer.allocate(128);
+            CBOR.encoder()
+                    .cbor_encode_typed_array(longs, ByteOrder.LITTLE_ENDIAN)
+                    .cbor_encode_typed_array(doubles, ByteOrder.BIG_ENDIAN)
+                    .cbor_encode_typed_array(new int[]{-2}, ByteOrder.BIG_ENDIAN)
+                    .observe()
+                    .blockingForEach(encoded::put);
+            encoded.flip();
+
+            CborParser dec = CBOR.parser()
+                    .cbor_parse_typed_array((__, ___, view) -> {
+                        assertTrue(view instanceof LongBuffer);
+                        assertEquals(3, view.remaining());
+                        assertEquals(Long.MAX_VALUE, ((LongBuffer) view).get(2));
+                    })
+                    .cbor_parse_typed_array_double((__, ___, d) -> {
+                        assertTrue(Arrays.equals(doubles, d));
+                    })
+                    .cbor_parse_typed_array_long((__, tags, l) -> {
+                        assertEquals(74, (long) tags.getLast());
+                        assertTrue(Arrays.equals(new long[]{-2}, l));
+                    });
+            assertEquals(true, dec.read(encoded));
+
+            // uint8 array
+            dec = CBOR.parser().cbor_parse_typed_array_long((__, ___, l) -> {
+                assertTrue(Arrays.equals(new long[]{255, 1}, l));
+            });
+            assertEquals(true, dec.read(hexToBuf("0xd84042ff01")));
+
+            // half precision floats
+            dec = CBOR.parser().cbor_parse_typed_array_double((__, ___, d) -> {
+                assertTrue(Arrays.equals(new double[]{1.0d, -2.0d}, d));
+            });
+            assertEquals(true, dec.read(hexToBuf("0xd850443c00c000")));
+        } catch (RxParserException rpe) {
+            rpe.printStackTrace();
+            fail();
+        }
+
+        try {
+            // untagged byte string is not a typed array
+            CBOR.parser().cbor_parse_typed_array((__, ___, view) -> fail())
+                    .read(hexToBuf("0x4401020304"));
+            fail();
+        } catch (RxParserException rpe) {
+            // expected
+        }
+    }
+
     @Test
     public void parseCborWithFilters() {
         System.out.println("[+] cborparser: testing the cbor parser filters (do_for_each)");
@@ -895,6 +957,88 @@ public class CBORParserTest {
         assertEquals(5, items.size());
     }
 
+    @Test
+    public void parseGeneratedItem() {
+        System.out.println("[+] cborparser: testing generated item codec");
+
+        SampleItem sample = new SampleItem();
+        sample.id = -7;
+        sample.ts = 1363896240L;
+        sample.valid = true;
+        sample.ratio = 0.5f;
+        sample.value = 1.1d;
+        sample.name = "sensor";
+        sample.comment = null;
+        sample.payload = new byte[]{1, 2, 3};
+        sample.peer = new PeerRef();
+        sample.peer.eid = "dtn://source/";
+        sample.relay = null;
+
+        ByteBuffer encoded = ByteBuffer.allocate(128);
+        CBORParserTest_SampleItemCbor.encode(CBOR.encoder(), sample)
+                .observe()
+                .blockingForEach(encoded::put);
+        encoded.flip();
+        assertTrue(assertByteBufferEquals(encoded, CBORParserTest_SampleItemCbor.encode(CBOR.writer(), sample).toByteBuffer()));
+
+        try {
+            LinkedList<SampleItem> items = new LinkedList<>();
+            CborParser dec = CBOR.parser().cbor_parse_custom_item(SampleItem::new, (__, ___, item) -> items.add(item));
+            // feed one byte at a time
+            boolean done = false;
+            while (encoded.hasRemaining()) {
+                ByteBuffer one = encoded.duplicate();
+                one.limit(one.position() + 1);
+                encoded.position(encoded.position() + 1);
+                done = dec.read(one);
+            }
+            assertTrue(done);
+            assertEquals(1, items.size());
+
+            SampleItem item = items.getFirst();
+            assertEquals(sample.id, item.id);
+            assertEquals(sample.ts, item.ts);
+            assertEquals(sample.valid, item.valid);
+            assertEquals(sample.ratio, item.ratio);
+            assertEquals(sample.value, item.value);
+            assertEquals(sample.name, item.name);
+            assertEquals(null, item.comment);
+            assertTrue(Arrays.equals(sample.payload, item.payload));
+            assertEquals(sample.peer.eid, item.peer.eid);
+            assertEquals(null, item.relay);
+        } catch (RxParserException rpe) {
+            rpe.printStackTrace();
+            fail();
+        }
+    }
+
+    @CborItem
+    static class SampleItem implements CborParser.ParseableItem {
+        int id;
+        long ts;
+        boolean valid;
+        float ratio;
+        double value;
+        String name;
+        @CborNullable
+        String comment;
+        byte[] payload;
+        PeerRef peer;
+        @CborNullable
+        PeerRef relay;
+        transient int cached;
+
+        @Override
+        public CborParser getItemParser() {
+            return CBORParserTest_SampleItemCbor.parser(this);
+        }
+    }
+
+    @CborItem
+    static class PeerRef {
+        String eid;
+    }
+
     class HeaderItem implements CborParser.ParseableItem {
         long version;
         long flag;